@@ -37,16 +37,12 @@
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
@@ -62,6 +58,8 @@
 import ontologizer.benchmark.Datafiles;
 import ontologizer.go.Term;
 import ontologizer.types.ByteString;
+import sonumina.boqa.benchmark.Benchmark;
+import sonumina.boqa.benchmark.LatencyHistogram;
 import sonumina.boqa.calculation.BOQA;
 import sonumina.boqa.calculation.Observations;
 
@@ -80,6 +78,16 @@
 
     static private String outPath;
 
+    static private boolean measureLatencies;
+
+    static private int parseThreads = 1;
+
+    static private int compileThreads = 1;
+
+    static private int scoreThreads = BOQA.getNumProcessors();
+
+    static private int writeThreads = 1;
+
     static private BOQA boqa;
 
     static private HashMap<Integer, ByteString> omimMap = null;
@@ -98,6 +106,12 @@ public static void parseCommandLine(String[] args)
         opt.addOption("a", "annotations", true, "Path or URL to files containing annotations.");
         opt.addOption("p", "patient", true, "Path to directory with patients");
         opt.addOption("d", "out", true, "Path to output directory");
+        opt.addOption("l", "latency", false,
+            "Records the latency of each query and writes the percentiles to latency.txt in the output directory");
+        opt.addOption("t", "threads", true, "Number of threads that score patients (defaults to the number of cores)");
+        opt.addOption(null, "parse-threads", true, "Number of threads that read patients (defaults to 1)");
+        opt.addOption(null, "compile-threads", true, "Number of threads that compile queries (defaults to 1)");
+        opt.addOption(null, "write-threads", true, "Number of threads that write results (defaults to 1)");
         opt.addOption("h", "help", false, "Shows this help");
 
         try {
@@ -115,8 +129,13 @@ public static void parseCommandLine(String[] args)
             annotationPath = cl.getOptionValue('a', annotationPath);
             patientPath = cl.getOptionValue('p');
             outPath = cl.getOptionValue('d');
+            measureLatencies = cl.hasOption('l');
+            scoreThreads = Integer.parseInt(cl.getOptionValue('t', Integer.toString(scoreThreads)));
+            parseThreads = Integer.parseInt(cl.getOptionValue("parse-threads", Integer.toString(parseThreads)));
+            compileThreads = Integer.parseInt(cl.getOptionValue("compile-threads", Integer.toString(compileThreads)));
+            writeThreads = Integer.parseInt(cl.getOptionValue("write-threads", Integer.toString(writeThreads)));
 
-        } catch (ParseException e) {
+        } catch (ParseException | NumberFormatException e) {
             logger.error("Failed to parse commandline: " + e.getLocalizedMessage());
             System.exit(1);
         }
@@ -124,6 +143,11 @@ public static void parseCommandLine(String[] args)
     }
 
     public static void addTermAndAncestors(Term t, Observations obsv)
+    {
+        addTermAndAncestors(boqa, t, obsv);
+    }
+
+    private static void addTermAndAncestors(BOQA boqa, Term t, Observations obsv)
     {
         try {
             int id = boqa.getTermIndex(t);
@@ -135,7 +159,7 @@ public static void addTermAndAncestors(Term t, Observations obsv)
 
             for (Term p : boqa.getOntology().getTermParents(t)) {
                 logger.warn("Parent: " + p);
-                addTermAndAncestors(p, obsv);
+                addTermAndAncestors(boqa, p, obsv);
             }
         }
     }
@@ -143,7 +167,7 @@ public static void addTermAndAncestors(Term t, Observations obsv)
     /**
      * @param hpoTermList alist of HPO terms separated by comma, e.g., "HP:0000407,HP:0009830,HP:0002858".
      */
-    private static ArrayList<String> initializeHPOTermList(String hpoTermList)
+    static ArrayList<String> initializeHPOTermList(String hpoTermList)
     {
         String A[] = hpoTermList.split(",");
         ArrayList<String> hpoList = new ArrayList<String>();
@@ -164,7 +188,25 @@ private static ArrayList<String> initializeHPOTermList(String hpoTermList)
         return hpoList;
     }
 
-    private static ArrayList<String> preformBOQACalculations(ArrayList<String> hpoList)
+    /**
+     * Compiles the given HPO terms into observations, i.e., the terms and their ancestors are on.
+     *
+     * @param hpoList
+     * @return
+     */
+    static Observations compileQuery(List<String> hpoList)
+    {
+        return compileQuery(boqa, hpoList);
+    }
+
+    /**
+     * Compiles the given terms into observations for the given BOQA object.
+     *
+     * @param boqa
+     * @param hpoList
+     * @return
+     */
+    static Observations compileQuery(BOQA boqa, List<String> hpoList)
     {
         Observations o = new Observations();
         o.observations = new boolean[boqa.getOntology().getNumberOfTerms()];
@@ -172,12 +214,20 @@ private static ArrayList<String> preformBOQACalculations(ArrayList<String> hpoLi
         // Add all hpo terms with ancestors to array of booleans
         for (String hpo : hpoList) {
             Term t = boqa.getOntology().getTerm(hpo);
-            addTermAndAncestors(t, o);
+            addTermAndAncestors(boqa, t, o);
         }
+        return o;
+    }
 
-        // Get marginals
-        final BOQA.Result res = boqa.assignMarginals(o, false, 1);
-
+    /**
+     * Returns the indices of the items with the highest marginals in descending order of the marginals.
+     *
+     * @param res
+     * @param k the maximal number of items that are returned
+     * @return
+     */
+    static int[] topItems(final BOQA.Result res, int k)
+    {
         // All of this is sorting diseases by marginals
         Integer[] order = new Integer[res.size()];
         for (int i = 0; i < order.length; i++) {
@@ -199,10 +249,23 @@ public int compare(Integer o1, Integer o2)
             }
         });
 
+        int[] top = new int[Math.min(k, order.length)];
+        for (int i = 0; i < top.length; i++) {
+            top[i] = order[i];
+        }
+        return top;
+    }
+
+    private static ArrayList<String> preformBOQACalculations(ArrayList<String> hpoList)
+    {
+        Observations o = compileQuery(hpoList);
+
+        // Get marginals
+        final BOQA.Result res = boqa.assignMarginals(o, false, 1);
+
         // Get top 20 results
         ArrayList<String> results = new ArrayList<String>();
-        for (int i = 0; i < 20; i++) {
-            int id = order[i];
+        for (int id : topItems(res, 20)) {
             results.add(res.getMarginal(id) + "\t" + BOQABenchmark.omimMap.get(id));
         }
 
@@ -210,16 +273,16 @@ public int compare(Integer o1, Integer o2)
     }
 
     /**
-     * The main entry.
+     * Loads the ontology and the annotations and sets up the BOQA object that is used by the queries.
      *
-     * @param args
+     * @param ontologyPath
+     * @param annotationPath
+     * @return
      * @throws IOException
      * @throws InterruptedException
      */
-    public static void main(String[] args) throws InterruptedException, IOException
+    static BOQA setup(String ontologyPath, String annotationPath) throws InterruptedException, IOException
     {
-        parseCommandLine(args);
-
         BOQA boqa = new BOQA();
         boqa.setConsiderFrequenciesOnly(false);
         boqa.setPrecalculateScoreDistribution(false);
@@ -245,31 +308,58 @@ public static void main(String[] args) throws InterruptedException, IOException
         for (Map.Entry<ByteString, Integer> item : omimtonum) {
             omimMap.put(item.getValue(), item.getKey());
         }
+        return boqa;
+    }
 
-        // Read in hpo files
-        Charset utf8 = StandardCharsets.UTF_8;
-        File inFolder = new File(patientPath);
-        String[] files = inFolder.list();
-        Scanner s;
+    /**
+     * The main entry.
+     *
+     * @param args
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException, IOException
+    {
+        parseCommandLine(args);
 
-        for (String f : files) {
+        BOQA boqa = setup(ontologyPath, annotationPath);
 
-            if (f.endsWith("_hpo.txt")) {
-                s = new Scanner(new File(patientPath + File.separator + f));
-                String hpoTerms = s.nextLine();
+        // Process the patient files
+        File inFolder = new File(patientPath);
+        ArrayList<File> files = new ArrayList<File>();
+        for (String f : inFolder.list()) {
+            if (PatientPipeline.isInput(f)) {
+                files.add(new File(inFolder, f));
+            }
+        }
 
-                // Get seperated terms
-                ArrayList<String> hpoTermList = BOQABenchmark.initializeHPOTermList(hpoTerms);
+        PatientPipeline pipeline = new PatientPipeline(boqa, new File(outPath));
+        pipeline.setThreads(parseThreads, compileThreads, scoreThreads, writeThreads);
+        LatencyHistogram latencies = new LatencyHistogram();
+        pipeline.setLatencies(latencies);
 
-                // Do actual calculations
-                ArrayList<String> data = BOQABenchmark.preformBOQACalculations(hpoTermList);
-                Files.write(Paths.get(outPath + File.separator + f + ".results"), data, utf8);
-            }
+        long startTime = System.nanoTime();
+        int processed = pipeline.run(files);
+        logger.info("Processed {} patients of {} files", processed, files.size());
+        if (pipeline.getFailed() != 0) {
+            logger.error("{} inputs, lines or patients could not be processed", pipeline.getFailed());
+        }
+
+        if (measureLatencies) {
+            Map<String, LatencyHistogram> methods = new HashMap<String, LatencyHistogram>();
+            methods.put("boqa", latencies);
+            Benchmark.writeLatencies(new File(outPath + File.separator + "latency.txt"), methods,
+                System.nanoTime() - startTime);
         }
 
         ArrayList<String> test =
             BOQABenchmark.initializeHPOTermList("HP:0000163,HP:0002015,HP:0006292,HP:0000234,HP:0000585,HP:0000276");
         BOQABenchmark.preformBOQACalculations(test);
         OntologizerThreadGroups.workerThreadGroup.interrupt();
+
+        /* Let batch callers distinguish a partial run from a complete one */
+        if (pipeline.getFailed() != 0) {
+            System.exit(1);
+        }
     }
 }
@@ -0,0 +1,738 @@
+/* Copyright (c) 2010-2012 Sebastian Bauer
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * * Neither the name of Sebastian Bauer nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE.  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sonumina.boqa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import sonumina.boqa.benchmark.Benchmark;
+import sonumina.boqa.benchmark.LatencyHistogram;
+import sonumina.boqa.calculation.BOQA;
+import sonumina.boqa.calculation.Observations;
+import sonumina.boqa.calculation.RandomStream;
+
+/**
+ * A resident server that answers queries with a BOQA object that is set up only once. It listens on the loopback
+ * interface and provides the following endpoints:
+ * <ul>
+ * <li>/query: returns the items with the highest marginals for the given terms. The terms are either passed as comma
+ * separated list in the parameter "terms" or in the body of a POST request, either again as comma separated list or as
+ * JSON object with an array "terms". The optional parameter "k" specifies the number of returned items. The result is
+ * a JSON object with an array "results" of items and their marginals.</li>
+ * <li>/latency: returns the latencies of each endpoint in the format of
+ * {@link Benchmark#writeLatencies(java.io.Writer, Map, long)}.</li>
+ * </ul>
+ * Queries that arrive within a short window are coalesced into a batch. Queries of a batch that are identical after
+ * compilation are scored only once and the distinct queries of a batch are scored in parallel. While a batch is scored,
+ * the next one is collected, and it is scored as soon as the previous one has finished.
+ *
+ * @author Sebastian Bauer
+ */
+public class BOQAServer
+{
+    private static Logger logger = LoggerFactory.getLogger(BOQAServer.class);
+
+    /** The endpoint that answers queries */
+    public static final String QUERY_ENDPOINT = "/query";
+
+    /** The endpoint that reports the latencies */
+    public static final String LATENCY_ENDPOINT = "/latency";
+
+    /**
+     * A query that waits for its results.
+     */
+    private static class Request
+    {
+        final Observations observations;
+
+        final int k;
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        TopItems result;
+
+        RuntimeException error;
+
+        Request(Observations observations, int k)
+        {
+            this.observations = observations;
+            this.k = k;
+        }
+
+        /**
+         * Completes the request unless it has been completed already.
+         *
+         * @param result
+         * @param error
+         */
+        void complete(TopItems result, RuntimeException error)
+        {
+            if (this.completed.compareAndSet(false, true)) {
+                this.result = result;
+                this.error = error;
+                this.done.countDown();
+            }
+        }
+    }
+
+    /**
+     * The items with the highest marginals in descending order of the marginals.
+     */
+    public static class TopItems
+    {
+        private final int[] items;
+
+        private final double[] marginals;
+
+        TopItems(int[] items, double[] marginals)
+        {
+            this.items = items;
+            this.marginals = marginals;
+        }
+
+        public int getItem(int i)
+        {
+            return this.items[i];
+        }
+
+        public double getMarginal(int i)
+        {
+            return this.marginals[i];
+        }
+
+        public int size()
+        {
+            return this.items.length;
+        }
+    }
+
+    /**
+     * Identifies queries whose observations are equal.
+     */
+    private static class QueryKey
+    {
+        final boolean[] observations;
+
+        final int hash;
+
+        QueryKey(boolean[] observations)
+        {
+            this.observations = observations;
+            this.hash = Arrays.hashCode(observations);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof QueryKey && Arrays.equals(this.observations, ((QueryKey) obj).observations);
+        }
+    }
+
+    private final BOQA boqa;
+
+    private int scoreThreads = BOQA.getNumProcessors();
+
+    private long batchWindow = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private int maxBatchSize = 64;
+
+    private int topItems = 20;
+
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+
+    /** The requests that have not been completed yet */
+    private final Set<Request> pending = Collections.newSetFromMap(new ConcurrentHashMap<Request, Boolean>());
+
+    /** Permits a single batch to be scored at a time */
+    private final Semaphore scoring = new Semaphore(1);
+
+    private boolean stopped;
+
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+
+    private HttpServer server;
+
+    private ExecutorService handlers;
+
+    private ExecutorService scorers;
+
+    private Thread dispatcher;
+
+    private long startTime;
+
+    /**
+     * Constructs the server for the given BOQA object, which must be set up already.
+     *
+     * @param boqa
+     */
+    public BOQAServer(BOQA boqa)
+    {
+        this.boqa = boqa;
+        this.latencies.put(QUERY_ENDPOINT, new LatencyHistogram());
+        this.latencies.put(LATENCY_ENDPOINT, new LatencyHistogram());
+    }
+
+    /**
+     * Sets the number of threads that score the queries of a batch.
+     *
+     * @param scoreThreads
+     */
+    public void setScoreThreads(int scoreThreads)
+    {
+        this.scoreThreads = Math.max(1, scoreThreads);
+    }
+
+    /**
+     * Sets how long the first query of a batch waits for further queries.
+     *
+     * @param batchWindow the window in milliseconds
+     */
+    public void setBatchWindow(long batchWindow)
+    {
+        this.batchWindow = TimeUnit.MILLISECONDS.toNanos(Math.max(0, batchWindow));
+    }
+
+    /**
+     * Sets the maximal number of queries of a batch.
+     *
+     * @param maxBatchSize
+     */
+    public void setMaxBatchSize(int maxBatchSize)
+    {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * Sets the number of items that are returned if the query doesn't specify it.
+     *
+     * @param topItems
+     */
+    public void setTopItems(int topItems)
+    {
+        this.topItems = Math.max(1, topItems);
+    }
+
+    /**
+     * Returns the latencies of the endpoints. Latencies are measured from receiving a request until its response has
+     * been sent and include the time spent waiting for the batch.
+     *
+     * @return
+     */
+    public Map<String, LatencyHistogram> getLatencies()
+    {
+        return Collections.unmodifiableMap(this.latencies);
+    }
+
+    /**
+     * Starts to score queries. Called by {@link #start(int)}, but can be called beforehand in order to warm up.
+     */
+    public synchronized void startScoring()
+    {
+        if (this.stopped) {
+            throw new IllegalStateException("The server has been stopped");
+        }
+        if (this.dispatcher != null) {
+            return;
+        }
+
+        this.scorers = Executors.newFixedThreadPool(this.scoreThreads);
+        this.dispatcher = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                dispatch();
+            }
+        }, "BOQA dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Starts the server on the given port of the loopback interface.
+     *
+     * @param port the port or 0 to choose a free one.
+     * @throws IOException
+     */
+    public synchronized void start(int port) throws IOException
+    {
+        startScoring();
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+        /* A handler blocks until its query has been scored, allow the next batch to fill meanwhile */
+        this.handlers = Executors.newFixedThreadPool(2 * this.maxBatchSize);
+        this.server.setExecutor(this.handlers);
+        this.server.createContext(QUERY_ENDPOINT, new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                handleQuery(exchange);
+            }
+        });
+        this.server.createContext(LATENCY_ENDPOINT, new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                handleLatency(exchange);
+            }
+        });
+        this.startTime = System.nanoTime();
+        this.server.start();
+
+        logger.info("Listening on {}", this.server.getAddress());
+    }
+
+    /**
+     * Returns the port on which the server listens.
+     *
+     * @return
+     */
+    public int getPort()
+    {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server. Pending requests are answered with an error and the server cannot be started again.
+     */
+    public synchronized void stop()
+    {
+        this.stopped = true;
+
+        /* No request can be submitted anymore, so it is safe to fail the remaining ones */
+        RuntimeException error = new IllegalStateException("The server has been stopped");
+        for (Request r : this.pending) {
+            complete(r, null, error);
+        }
+        this.requests.clear();
+
+        if (this.server != null) {
+            this.server.stop(0);
+            this.handlers.shutdownNow();
+            this.server = null;
+        }
+        if (this.dispatcher != null) {
+            this.dispatcher.interrupt();
+            this.scorers.shutdownNow();
+            this.dispatcher = null;
+        }
+    }
+
+    /**
+     * Scores the given number of synthetic queries so that the code paths are compiled before the first real query
+     * arrives. The queries are simulated from random items and are not recorded in the latencies.
+     *
+     * @param queries
+     * @param rnd
+     * @throws InterruptedException
+     */
+    public void warmup(int queries, Random rnd) throws InterruptedException
+    {
+        startScoring();
+
+        long start = System.nanoTime();
+        List<Request> warmup = new ArrayList<Request>(queries);
+        for (int i = 0; i < queries; i++) {
+            Observations o = this.boqa.generateObservations(rnd.nextInt(this.boqa.getNumberOfItems()), rnd);
+            o.observationStats = null;
+            warmup.add(submit(o, this.topItems));
+        }
+        for (Request r : warmup) {
+            r.done.await();
+        }
+        logger.info("Warmed up with {} queries in {} ms", queries,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Queries the items with the highest marginals for the given terms. Blocks until the batch of the query has been
+     * scored.
+     *
+     * @param terms
+     * @param k the number of items
+     * @return
+     * @throws IllegalArgumentException if a term is unknown.
+     * @throws InterruptedException
+     */
+    public TopItems query(List<String> terms, int k) throws InterruptedException
+    {
+        Request r = submit(compile(terms), k);
+        r.done.await();
+        if (r.error != null) {
+            throw r.error;
+        }
+        return r.result;
+    }
+
+    private Observations compile(List<String> terms)
+    {
+        for (String term : terms) {
+            if (this.boqa.getOntology().getTerm(term) == null) {
+                throw new IllegalArgumentException("Unknown term \"" + term + "\"");
+            }
+        }
+        return BOQABenchmark.compileQuery(this.boqa, terms);
+    }
+
+    private synchronized Request submit(Observations observations, int k)
+    {
+        if (this.stopped || this.dispatcher == null) {
+            throw new IllegalStateException("The server doesn't score queries");
+        }
+        Request r = new Request(observations, k);
+        this.pending.add(r);
+        this.requests.add(r);
+        return r;
+    }
+
+    private void complete(Request r, TopItems result, RuntimeException error)
+    {
+        r.complete(result, error);
+        this.pending.remove(r);
+    }
+
+    /**
+     * Collects the requests into batches and hands them to the scorers until interrupted.
+     */
+    private void dispatch()
+    {
+        try {
+            while (true) {
+                ArrayList<Request> batch = new ArrayList<Request>(this.maxBatchSize);
+                batch.add(this.requests.take());
+
+                long deadline = System.nanoTime() + this.batchWindow;
+                while (batch.size() < this.maxBatchSize) {
+                    Request r = this.requests.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (r == null) {
+                        break;
+                    }
+                    batch.add(r);
+                }
+
+                /* Wait for the previous batch, requests that arrived meanwhile join this one */
+                this.scoring.acquire();
+                this.requests.drainTo(batch, this.maxBatchSize - batch.size());
+                score(batch);
+            }
+        } catch (InterruptedException | RejectedExecutionException e) {
+            /* The server has been stopped, which fails the pending requests */
+        }
+    }
+
+    /**
+     * Hands the given batch to the scorers, which notify the waiting requests. The scoring permit is released once
+     * all queries of the batch have been scored.
+     *
+     * @param batch
+     */
+    private void score(List<Request> batch)
+    {
+        final Map<QueryKey, List<Request>> distinct = new HashMap<QueryKey, List<Request>>();
+        for (Request r : batch) {
+            QueryKey key = new QueryKey(r.observations.observations);
+            List<Request> same = distinct.get(key);
+            if (same == null) {
+                same = new ArrayList<Request>(1);
+                distinct.put(key, same);
+            }
+            same.add(r);
+        }
+
+        logger.debug("Scoring batch of {} queries, {} distinct", batch.size(), distinct.size());
+
+        final AtomicInteger remaining = new AtomicInteger(distinct.size());
+        for (final List<Request> same : distinct.values()) {
+            this.scorers.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        BOQA.Result res = BOQAServer.this.boqa.assignMarginals(same.get(0).observations, false, 1);
+                        for (Request r : same) {
+                            int[] items = BOQABenchmark.topItems(res, r.k);
+                            double[] marginals = new double[items.length];
+                            for (int i = 0; i < items.length; i++) {
+                                marginals[i] = res.getMarginal(items[i]);
+                            }
+                            complete(r, new TopItems(items, marginals), null);
+                        }
+                    } catch (RuntimeException e) {
+                        logger.error("Failed to score query", e);
+                        for (Request r : same) {
+                            complete(r, null, e);
+                        }
+                    } finally {
+                        /* Requests that are still open have been hit by an error */
+                        for (Request r : same) {
+                            if (r.done.getCount() != 0) {
+                                complete(r, null, new RuntimeException("Failed to score query"));
+                            }
+                        }
+                        if (remaining.decrementAndGet() == 0) {
+                            BOQAServer.this.scoring.release();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void handleQuery(HttpExchange exchange) throws IOException
+    {
+        long start = System.nanoTime();
+        try {
+            Map<String, String> parameters = parseParameters(exchange.getRequestURI().getRawQuery());
+
+            List<String> terms = null;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                String body = readBody(exchange.getRequestBody()).trim();
+                if (body.startsWith("{")) {
+                    terms = PatientPipeline.parseJSONTerms(body);
+                } else if (!body.isEmpty()) {
+                    terms = BOQABenchmark.initializeHPOTermList(body);
+                }
+            } else if (!"GET".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "text/plain", "Only GET and POST are supported\n");
+                return;
+            }
+            if (terms == null && parameters.containsKey("terms")) {
+                terms = BOQABenchmark.initializeHPOTermList(parameters.get("terms"));
+            }
+            if (terms == null) {
+                respond(exchange, 400, "text/plain", "No terms given\n");
+                return;
+            }
+
+            int k = this.topItems;
+            if (parameters.containsKey("k")) {
+                k = Integer.parseInt(parameters.get("k"));
+                if (k < 1) {
+                    throw new IllegalArgumentException("k must be positive");
+                }
+            }
+
+            TopItems result = query(terms, k);
+
+            StringBuilder builder = new StringBuilder();
+            builder.append('{');
+            PatientPipeline.appendJSONResults(builder, result.items, result.marginals, this.boqa);
+            builder.append("}\n");
+            respond(exchange, 200, "application/json", builder.toString());
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "text/plain", e.getLocalizedMessage() + "\n");
+        } catch (InterruptedException | IllegalStateException e) {
+            respond(exchange, 503, "text/plain", "The server is shutting down\n");
+        } catch (RuntimeException e) {
+            respond(exchange, 500, "text/plain", "Failed to score query\n");
+        } finally {
+            this.latencies.get(QUERY_ENDPOINT).record(System.nanoTime() - start);
+        }
+    }
+
+    private void handleLatency(HttpExchange exchange) throws IOException
+    {
+        long start = System.nanoTime();
+        try {
+            StringWriter out = new StringWriter();
+            Benchmark.writeLatencies(out, this.latencies, System.nanoTime() - this.startTime);
+            respond(exchange, 200, "text/tab-separated-values", out.toString());
+        } finally {
+            this.latencies.get(LATENCY_ENDPOINT).record(System.nanoTime() - start);
+        }
+    }
+
+    private static Map<String, String> parseParameters(String query) throws IOException
+    {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq != -1) {
+                parameters.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                    URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static String readBody(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            body.write(buf, 0, read);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int code, String contentType, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * The main entry.
+     *
+     * @param args
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException, IOException
+    {
+        Options opt = new Options();
+        opt.addOption("o", "ontology", true, "Path or URL to the ontology file.");
+        opt.addOption("a", "annotations", true, "Path or URL to files containing annotations.");
+        opt.addOption(null, "port", true, "Port on the loopback interface to listen on (defaults to 8080)");
+        opt.addOption("t", "threads", true, "Number of threads that score queries (defaults to the number of cores)");
+        opt.addOption(null, "batch-window", true,
+            "Milliseconds the first query of a batch waits for further ones (defaults to 2)");
+        opt.addOption(null, "max-batch", true, "Maximal number of queries of a batch (defaults to 64)");
+        opt.addOption("k", "top", true, "Number of returned items if the query doesn't specify it (defaults to 20)");
+        opt.addOption(null, "warmup", true, "Number of synthetic queries to warm up with (defaults to 200)");
+        opt.addOption("h", "help", false, "Shows this help");
+
+        String ontologyPath = null;
+        String annotationPath = null;
+        int port = 8080;
+        int warmup = 200;
+        final BOQAServer server;
+
+        try {
+            CommandLine cl = new GnuParser().parse(opt, args);
+
+            if (cl.hasOption('h')) {
+                HelpFormatter f = new HelpFormatter();
+                f.printHelp(BOQAServer.class.getName(), opt);
+                System.exit(0);
+            }
+
+            ontologyPath = cl.getOptionValue('o');
+            annotationPath = cl.getOptionValue('a');
+            port = Integer.parseInt(cl.getOptionValue("port", Integer.toString(port)));
+            warmup = Integer.parseInt(cl.getOptionValue("warmup", Integer.toString(warmup)));
+
+            server = new BOQAServer(BOQABenchmark.setup(ontologyPath, annotationPath));
+            if (cl.hasOption('t')) {
+                server.setScoreThreads(Integer.parseInt(cl.getOptionValue('t')));
+            }
+            if (cl.hasOption("batch-window")) {
+                server.setBatchWindow(Long.parseLong(cl.getOptionValue("batch-window")));
+            }
+            if (cl.hasOption("max-batch")) {
+                server.setMaxBatchSize(Integer.parseInt(cl.getOptionValue("max-batch")));
+            }
+            if (cl.hasOption('k')) {
+                server.setTopItems(Integer.parseInt(cl.getOptionValue('k')));
+            }
+        } catch (ParseException | NumberFormatException e) {
+            logger.error("Failed to parse commandline: " + e.getLocalizedMessage());
+            System.exit(1);
+            return;
+        }
+
+        server.warmup(warmup, new RandomStream(0));
+        server.start(port);
+
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            @Override
+            public void run()
+            {
+                server.stop();
+            }
+        });
+    }
+}
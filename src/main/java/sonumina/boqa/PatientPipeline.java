@@ -0,0 +1,776 @@
+/* Copyright (c) 2010-2012 Sebastian Bauer
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * * Neither the name of Sebastian Bauer nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE.  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sonumina.boqa;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import sonumina.boqa.benchmark.LatencyHistogram;
+import sonumina.boqa.calculation.BOQA;
+import sonumina.boqa.calculation.Observations;
+
+/**
+ * Processes the patients of several input files with the BOQA of the benchmark. The patients pass the stages parse,
+ * compile query, score and write, which are connected by bounded queues. Each stage is run by its own number of
+ * threads.
+ * <p>
+ * The following input formats are supported:
+ * <ul>
+ * <li>*_hpo.txt: a single patient whose comma separated HPO terms are stored in the first line. The results are
+ * written to a file of the same name with suffix .results.</li>
+ * <li>*.tsv: one patient per line, consisting of an identifier and the comma separated HPO terms separated by a tab.
+ * Empty lines and lines starting with # are skipped. The results are streamed to a file of the same name with suffix
+ * .results, one line with the identifier, marginal and item per top ranked item.</li>
+ * <li>*.jsonl: one patient per line, as a JSON object with a string "id" and an array "terms" of HPO terms. The
+ * results are streamed to a file of the same name with suffix .results, one JSON object per patient.</li>
+ * </ul>
+ * Patients of the same file are written in the order in which they are finished.
+ *
+ * @author Sebastian Bauer
+ */
+class PatientPipeline
+{
+    private static Logger logger = LoggerFactory.getLogger(PatientPipeline.class);
+
+    /** Number of items with the highest marginals that are written */
+    private static final int TOP_ITEMS = 20;
+
+    private static final Pattern JSON_ID_PATTERN =
+        Pattern.compile("\"id\"\\s*:\\s*(?:\"((?:[^\"\\\\]|\\\\.)*)\"|(-?\\d+))");
+
+    private static final Pattern JSON_TERMS_PATTERN = Pattern.compile("\"terms\"\\s*:\\s*\\[([^\\]]*)\\]");
+
+    private static final Pattern JSON_STRING_PATTERN = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    /** The supported input formats */
+    private static enum Format
+    {
+        HPO,
+        TSV,
+        JSONL
+    }
+
+    /**
+     * An input file along with the destination of its results.
+     */
+    private static class Input
+    {
+        final File file;
+
+        final Format format;
+
+        /** Receives the results of files with several patients */
+        Writer out;
+
+        Input(File file, Format format)
+        {
+            this.file = file;
+            this.format = format;
+        }
+    }
+
+    /**
+     * A patient that passes the pipeline.
+     */
+    private static class Patient
+    {
+        final Input input;
+
+        final String id;
+
+        final List<String> terms;
+
+        Observations observations;
+
+        /** Time needed to compile the query in nanoseconds */
+        long compileTime;
+
+        int[] topItems;
+
+        double[] topMarginals;
+
+        Patient(Input input, String id, List<String> terms)
+        {
+            this.input = input;
+            this.id = id;
+            this.terms = terms;
+        }
+    }
+
+    /** Marks the end of the inputs */
+    private static final Input END_OF_INPUTS = new Input(null, null);
+
+    /** Marks the end of the patients */
+    private static final Patient END_OF_PATIENTS = new Patient(null, null, null);
+
+    private final BOQA boqa;
+
+    private final File outDirectory;
+
+    private int parseThreads = 1;
+
+    private int compileThreads = 1;
+
+    private int scoreThreads = BOQA.getNumProcessors();
+
+    private int writeThreads = 1;
+
+    private int queueCapacity = 256;
+
+    private LatencyHistogram latencies;
+
+    private final AtomicInteger processed = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /** The first error that stopped a stage, the pipeline is aborted then */
+    private final AtomicReference<Throwable> fatal = new AtomicReference<Throwable>();
+
+    private ExecutorService executor;
+
+    /**
+     * Constructs the pipeline.
+     *
+     * @param boqa the BOQA of the benchmark
+     * @param outDirectory where the results are written to
+     */
+    PatientPipeline(BOQA boqa, File outDirectory)
+    {
+        this.boqa = boqa;
+        this.outDirectory = outDirectory;
+    }
+
+    /**
+     * Sets the number of threads of each stage.
+     *
+     * @param parseThreads
+     * @param compileThreads
+     * @param scoreThreads
+     * @param writeThreads
+     */
+    void setThreads(int parseThreads, int compileThreads, int scoreThreads, int writeThreads)
+    {
+        this.parseThreads = Math.max(1, parseThreads);
+        this.compileThreads = Math.max(1, compileThreads);
+        this.scoreThreads = Math.max(1, scoreThreads);
+        this.writeThreads = Math.max(1, writeThreads);
+    }
+
+    /**
+     * Sets the capacity of the queues between the stages.
+     *
+     * @param queueCapacity
+     */
+    void setQueueCapacity(int queueCapacity)
+    {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /**
+     * Sets the histogram that receives the time needed to compile and score the query of each patient.
+     * Time spent waiting in the queues is not included.
+     *
+     * @param latencies
+     */
+    void setLatencies(LatencyHistogram latencies)
+    {
+        this.latencies = latencies;
+    }
+
+    /**
+     * Returns whether the given file name denotes a supported input file.
+     *
+     * @param name
+     * @return
+     */
+    static boolean isInput(String name)
+    {
+        return getFormat(name) != null;
+    }
+
+    private static Format getFormat(String name)
+    {
+        if (name.endsWith("_hpo.txt")) {
+            return Format.HPO;
+        }
+        if (name.endsWith(".tsv")) {
+            return Format.TSV;
+        }
+        if (name.endsWith(".jsonl")) {
+            return Format.JSONL;
+        }
+        return null;
+    }
+
+    /**
+     * A stage of the pipeline that is run by several threads. Each thread takes elements from the input queue until
+     * it sees the end marker. The last thread that finishes calls finished().
+     *
+     * @param <I> the type of the elements
+     */
+    private abstract class Stage<I> implements Runnable
+    {
+        private final BlockingQueue<I> input;
+
+        private final I end;
+
+        private final AtomicInteger active;
+
+        Stage(BlockingQueue<I> input, I end, int threads)
+        {
+            this.input = input;
+            this.end = end;
+            this.active = new AtomicInteger(threads);
+        }
+
+        protected abstract void process(I element) throws IOException, InterruptedException;
+
+        protected abstract void finished() throws InterruptedException;
+
+        @Override
+        public void run()
+        {
+            try {
+                while (true) {
+                    I element = this.input.take();
+                    if (element == this.end) {
+                        /* Let the other threads of this stage see the marker as well */
+                        this.input.put(element);
+                        break;
+                    }
+
+                    try {
+                        process(element);
+                    } catch (IOException | RuntimeException e) {
+                        logger.error("Failed to process " + describe(element), e);
+                        PatientPipeline.this.failed.incrementAndGet();
+                    }
+                }
+
+                if (this.active.decrementAndGet() == 0) {
+                    finished();
+                }
+            } catch (InterruptedException | Error e) {
+                /* The end marker won't be passed on, so the other stages must be stopped as well */
+                abort(e);
+            }
+        }
+    }
+
+    /**
+     * Stops all stages because of the given error, unless they have been stopped already.
+     *
+     * @param e
+     */
+    private void abort(Throwable e)
+    {
+        if (this.fatal.compareAndSet(null, e)) {
+            logger.error("Aborting the processing of the patients", e);
+            this.executor.shutdownNow();
+        }
+    }
+
+    private static String describe(Object element)
+    {
+        if (element instanceof Input) {
+            return ((Input) element).file.toString();
+        }
+        Patient patient = (Patient) element;
+        return "patient " + patient.id + " of " + patient.input.file;
+    }
+
+    /**
+     * Processes all patients of the given files and waits until all results have been written. Inputs, lines and
+     * patients that cannot be processed are skipped and can be queried via {@link #getFailed()}.
+     *
+     * @param files
+     * @return the number of patients whose results have been written.
+     * @throws InterruptedException if the pipeline has been interrupted.
+     * @throws Error if a stage has been stopped by an error, in which case the pipeline has been aborted.
+     */
+    int run(List<File> files) throws InterruptedException
+    {
+        final BlockingQueue<Input> inputs = new ArrayBlockingQueue<Input>(files.size() + 1);
+        final BlockingQueue<Patient> parsed = new ArrayBlockingQueue<Patient>(this.queueCapacity);
+        final BlockingQueue<Patient> compiled = new ArrayBlockingQueue<Patient>(this.queueCapacity);
+        final BlockingQueue<Patient> scored = new ArrayBlockingQueue<Patient>(this.queueCapacity);
+        final List<Input> openInputs = new ArrayList<Input>();
+
+        for (File file : files) {
+            Format format = getFormat(file.getName());
+            if (format != null) {
+                inputs.add(new Input(file, format));
+            }
+        }
+        inputs.add(END_OF_INPUTS);
+
+        Stage<Input> parse = new Stage<Input>(inputs, END_OF_INPUTS, this.parseThreads)
+        {
+            @Override
+            protected void process(Input input) throws IOException, InterruptedException
+            {
+                parse(input, parsed, openInputs);
+            }
+
+            @Override
+            protected void finished() throws InterruptedException
+            {
+                parsed.put(END_OF_PATIENTS);
+            }
+        };
+
+        Stage<Patient> compile = new Stage<Patient>(parsed, END_OF_PATIENTS, this.compileThreads)
+        {
+            @Override
+            protected void process(Patient patient) throws InterruptedException
+            {
+                long start = System.nanoTime();
+                patient.observations = BOQABenchmark.compileQuery(PatientPipeline.this.boqa, patient.terms);
+                patient.compileTime = System.nanoTime() - start;
+                compiled.put(patient);
+            }
+
+            @Override
+            protected void finished() throws InterruptedException
+            {
+                compiled.put(END_OF_PATIENTS);
+            }
+        };
+
+        Stage<Patient> score = new Stage<Patient>(compiled, END_OF_PATIENTS, this.scoreThreads)
+        {
+            @Override
+            protected void process(Patient patient) throws InterruptedException
+            {
+                long start = System.nanoTime();
+                BOQA.Result res = PatientPipeline.this.boqa.assignMarginals(patient.observations, false, 1);
+                patient.topItems = BOQABenchmark.topItems(res, TOP_ITEMS);
+                patient.topMarginals = new double[patient.topItems.length];
+                for (int i = 0; i < patient.topItems.length; i++) {
+                    patient.topMarginals[i] = res.getMarginal(patient.topItems[i]);
+                }
+
+                /* The observations are no longer needed */
+                patient.observations = null;
+
+                if (PatientPipeline.this.latencies != null) {
+                    PatientPipeline.this.latencies.record(System.nanoTime() - start + patient.compileTime);
+                }
+                scored.put(patient);
+            }
+
+            @Override
+            protected void finished() throws InterruptedException
+            {
+                scored.put(END_OF_PATIENTS);
+            }
+        };
+
+        Stage<Patient> write = new Stage<Patient>(scored, END_OF_PATIENTS, this.writeThreads)
+        {
+            @Override
+            protected void process(Patient patient) throws IOException
+            {
+                write(patient);
+                PatientPipeline.this.processed.incrementAndGet();
+            }
+
+            @Override
+            protected void finished()
+            {
+            }
+        };
+
+        ExecutorService executor =
+            Executors.newFixedThreadPool(this.parseThreads + this.compileThreads + this.scoreThreads
+                + this.writeThreads);
+        this.executor = executor;
+        try {
+            for (int i = 0; i < this.parseThreads; i++) {
+                executor.execute(parse);
+            }
+            for (int i = 0; i < this.compileThreads; i++) {
+                executor.execute(compile);
+            }
+            for (int i = 0; i < this.scoreThreads; i++) {
+                executor.execute(score);
+            }
+            for (int i = 0; i < this.writeThreads; i++) {
+                executor.execute(write);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("{} patients processed so far", this.processed.get());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw e;
+        } finally {
+            synchronized (openInputs) {
+                for (Input input : openInputs) {
+                    try {
+                        input.out.close();
+                    } catch (IOException e) {
+                        logger.error("Failed to close the results of " + input.file, e);
+                    }
+                }
+            }
+        }
+
+        Throwable e = this.fatal.get();
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        if (e != null) {
+            InterruptedException interrupted = new InterruptedException("A stage of the pipeline has been interrupted");
+            interrupted.initCause(e);
+            throw interrupted;
+        }
+
+        if (this.failed.get() != 0) {
+            logger.warn("{} inputs, lines or patients could not be processed", this.failed.get());
+        }
+        return this.processed.get();
+    }
+
+    /**
+     * Returns the number of inputs, lines and patients that could not be processed.
+     *
+     * @return
+     */
+    int getFailed()
+    {
+        return this.failed.get();
+    }
+
+    /**
+     * Reads the patients of the given input and passes them to the given queue.
+     *
+     * @param input
+     * @param parsed
+     * @param openInputs receives the input if its results are streamed to an opened file.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void parse(Input input, BlockingQueue<Patient> parsed, List<Input> openInputs) throws IOException,
+        InterruptedException
+    {
+        try (BufferedReader in = Files.newBufferedReader(input.file.toPath(), StandardCharsets.UTF_8)) {
+            if (input.format == Format.HPO) {
+                String hpoTerms = in.readLine();
+                if (hpoTerms != null) {
+                    parsed.put(new Patient(input, input.file.getName(),
+                        BOQABenchmark.initializeHPOTermList(hpoTerms)));
+                }
+                return;
+            }
+
+            input.out = Files.newBufferedWriter(resultPath(input).toPath(), StandardCharsets.UTF_8);
+            synchronized (openInputs) {
+                openInputs.add(input);
+            }
+
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+
+                Patient patient =
+                    input.format == Format.TSV ? parseTSV(input, line) : parseJSON(input, line);
+                if (patient == null) {
+                    logger.warn("Skipping malformed line {} of {}", lineNumber, input.file);
+                    this.failed.incrementAndGet();
+                    continue;
+                }
+                parsed.put(patient);
+            }
+        }
+    }
+
+    private static Patient parseTSV(Input input, String line)
+    {
+        int tab = line.indexOf('\t');
+        if (tab == -1) {
+            return null;
+        }
+        return new Patient(input, line.substring(0, tab).trim(),
+            BOQABenchmark.initializeHPOTermList(line.substring(tab + 1)));
+    }
+
+    private static Patient parseJSON(Input input, String line)
+    {
+        try {
+            Matcher id = JSON_ID_PATTERN.matcher(line);
+            ArrayList<String> hpoList = parseJSONTerms(line);
+            if (!id.find() || hpoList == null) {
+                return null;
+            }
+            return new Patient(input, id.group(1) != null ? unescapeJSON(id.group(1)) : id.group(2), hpoList);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Extracts the strings of the "terms" array of the given JSON object.
+     *
+     * @param json
+     * @return the terms or null if the object has no "terms" array.
+     * @throws IllegalArgumentException if a term contains an invalid escape sequence.
+     */
+    static ArrayList<String> parseJSONTerms(String json)
+    {
+        Matcher terms = JSON_TERMS_PATTERN.matcher(json);
+        if (!terms.find()) {
+            return null;
+        }
+
+        ArrayList<String> hpoList = new ArrayList<String>();
+        Matcher term = JSON_STRING_PATTERN.matcher(terms.group(1));
+        while (term.find()) {
+            hpoList.add(unescapeJSON(term.group(1)).trim());
+        }
+        return hpoList;
+    }
+
+    private File resultPath(Input input)
+    {
+        return new File(this.outDirectory, input.file.getName() + ".results");
+    }
+
+    /**
+     * Writes the results of the given patient.
+     *
+     * @param patient
+     * @throws IOException
+     */
+    private void write(Patient patient) throws IOException
+    {
+        StringBuilder builder = new StringBuilder();
+        Input input = patient.input;
+
+        switch (input.format) {
+            case HPO:
+                ArrayList<String> lines = new ArrayList<String>();
+                for (int i = 0; i < patient.topItems.length; i++) {
+                    lines.add(patient.topMarginals[i] + "\t" + this.boqa.allItemList.get(patient.topItems[i]));
+                }
+                Files.write(resultPath(input).toPath(), lines, StandardCharsets.UTF_8);
+                return;
+
+            case TSV:
+                for (int i = 0; i < patient.topItems.length; i++) {
+                    builder.append(patient.id);
+                    builder.append('\t');
+                    builder.append(patient.topMarginals[i]);
+                    builder.append('\t');
+                    builder.append(this.boqa.allItemList.get(patient.topItems[i]));
+                    builder.append('\n');
+                }
+                break;
+
+            case JSONL:
+                builder.append("{\"id\":");
+                appendJSONString(builder, patient.id);
+                builder.append(',');
+                appendJSONResults(builder, patient.topItems, patient.topMarginals, this.boqa);
+                builder.append("}\n");
+                break;
+        }
+
+        synchronized (input.out) {
+            input.out.write(builder.toString());
+        }
+    }
+
+    /**
+     * Returns the character of the four hexadecimal digits that start at the given position.
+     *
+     * @param str
+     * @param from
+     * @return
+     * @throws IllegalArgumentException if there are no four hexadecimal digits.
+     */
+    private static char parseHexChar(String str, int from)
+    {
+        if (from + 4 > str.length()) {
+            throw new IllegalArgumentException("Truncated unicode escape in \"" + str + "\"");
+        }
+
+        int c = 0;
+        for (int i = from; i < from + 4; i++) {
+            int digit = Character.digit(str.charAt(i), 16);
+            if (digit == -1) {
+                throw new IllegalArgumentException("Invalid unicode escape in \"" + str + "\"");
+            }
+            c = c * 16 + digit;
+        }
+        return (char) c;
+    }
+
+    /**
+     * Resolves the escape sequences of the given JSON string.
+     *
+     * @param str
+     * @return
+     * @throws IllegalArgumentException if the string contains an invalid unicode escape.
+     */
+    private static String unescapeJSON(String str)
+    {
+        if (str.indexOf('\\') == -1) {
+            return str;
+        }
+
+        StringBuilder builder = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c != '\\' || i + 1 == str.length()) {
+                builder.append(c);
+                continue;
+            }
+
+            c = str.charAt(++i);
+            switch (c) {
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'u':
+                    builder.append(parseHexChar(str, i + 1));
+                    i += 4;
+                    break;
+                default:
+                    builder.append(c);
+                    break;
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Appends the "results" member that lists the given items together with their marginals.
+     *
+     * @param builder
+     * @param items
+     * @param marginals
+     * @param boqa provides the names of the items
+     */
+    static void appendJSONResults(StringBuilder builder, int[] items, double[] marginals, BOQA boqa)
+    {
+        builder.append("\"results\":[");
+        for (int i = 0; i < items.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"item\":");
+            appendJSONString(builder, String.valueOf(boqa.allItemList.get(items[i])));
+            builder.append(",\"marginal\":");
+            builder.append(marginals[i]);
+            builder.append('}');
+        }
+        builder.append(']');
+    }
+
+    static void appendJSONString(StringBuilder builder, String str)
+    {
+        builder.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+            }
+        }
+        builder.append('"');
+    }
+}
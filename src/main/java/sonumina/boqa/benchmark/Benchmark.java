@@ -39,14 +39,23 @@
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import ontologizer.dotwriter.AbstractDotAttributesProvider;
 import ontologizer.dotwriter.GODOTWriter;
@@ -56,6 +65,7 @@
 import sonumina.boqa.calculation.BOQA;
 import sonumina.boqa.calculation.BOQA.Result;
 import sonumina.boqa.calculation.Observations;
+import sonumina.boqa.calculation.RandomStream;
 import sonumina.math.graph.SlimDirectedGraphView;
 
 /**
@@ -65,12 +75,17 @@
  */
 public class Benchmark
 {
+    private static Logger logger = LoggerFactory.getLogger(Benchmark.class);
+
     private Ontology graph;
 
     private SlimDirectedGraphView<Term> slimGraph;
 
     private BOQA boqa;
 
+    /** The observation simulator of each worker, so that its scratch space is reused across runs */
+    private ThreadLocal<BOQA.ObservationSimulator> simulators = new ThreadLocal<BOQA.ObservationSimulator>();
+
     /** Verbose output */
     private boolean VERBOSE;
 
@@ -83,6 +98,12 @@
     /** Number of samples taken per item */
     private int samplesPerItem = 5;
 
+    /** Whether the latencies of the single methods are recorded */
+    private boolean measureLatencies;
+
+    /** The latencies of the methods, if they are recorded */
+    private LinkedHashMap<String, LatencyHistogram> latencies;
+
     /**
      * Container for a full experiment. Contains input data as well as results.
      *
@@ -123,6 +144,70 @@ public void setSamplesPerItem(int samplesPerItem)
         this.samplesPerItem = samplesPerItem;
     }
 
+    /**
+     * Sets whether the latency of each query is recorded for each method. If so, the percentiles are written to a file
+     * with suffix _latency.txt.
+     *
+     * @param measureLatencies
+     */
+    public void setMeasureLatencies(boolean measureLatencies)
+    {
+        this.measureLatencies = measureLatencies;
+    }
+
+    /**
+     * Records the latency of a query to the given method that was started at the given time.
+     *
+     * @param method
+     * @param startTime the start time as returned by System.nanoTime()
+     */
+    private void recordLatency(String method, long startTime)
+    {
+        if (this.latencies != null) {
+            this.latencies.get(method).record(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Writes the summary of the given latencies to the given file. Each line lists the number of queries, the mean,
+     * the 50th, 90th and 99th percentiles and the maximum of the latencies in milliseconds and the throughput in
+     * queries per second with respect to the given wall-clock time.
+     *
+     * @param file
+     * @param latencies maps the names of the methods to their latencies
+     * @param wallTime the wall-clock time in nanoseconds during which the latencies were recorded
+     * @throws IOException
+     */
+    public static void writeLatencies(File file, Map<String, LatencyHistogram> latencies, long wallTime)
+        throws IOException
+    {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            writeLatencies(out, latencies, wallTime);
+        }
+    }
+
+    /**
+     * Writes the summary of the given latencies to the given writer in the format of
+     * {@link #writeLatencies(File, Map, long)}.
+     *
+     * @param out
+     * @param latencies maps the names of the methods to their latencies
+     * @param wallTime the wall-clock time in nanoseconds during which the latencies were recorded
+     * @throws IOException
+     */
+    public static void writeLatencies(Writer out, Map<String, LatencyHistogram> latencies, long wallTime)
+        throws IOException
+    {
+        out.write("method\tqueries\tmean.ms\tp50.ms\tp90.ms\tp99.ms\tmax.ms\tqueries.per.s\n");
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            out.write(String.format(Locale.US, "%s\t%d\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%.2f\n", entry.getKey(),
+                h.getCount(), h.getMean() / 1e6, h.getValueAtPercentile(50) / 1e6,
+                h.getValueAtPercentile(90) / 1e6, h.getValueAtPercentile(99) / 1e6, h.getMax() / 1e6,
+                wallTime > 0 ? h.getCount() / (wallTime / 1e9) : 0));
+        }
+    }
+
     /**
      * Processes the simulation and evaluation for the given item. That is, we first generate some obfuscated
      * observations and then apply the tested algorithm to recover the signal.
@@ -134,24 +219,100 @@ private ExperimentStore processItem(int item, boolean provideGraph, Random rnd)
     {
         int i;
 
-        Observations obs = this.boqa.generateObservations(item, rnd);
+        BOQA.ObservationSimulator simulator = this.simulators.get();
+        if (simulator == null) {
+            simulator = this.boqa.createObservationSimulator();
+            this.simulators.set(simulator);
+        }
+        final Observations obs = simulator.generateObservations(item, rnd);
 
         boolean[] observations = obs.observations;
 
-        /* First, without taking frequencies into account */
-        Result modelWithoutFrequencies = this.boqa.assignMarginals(obs, false);
+        /*
+         * The methods are evaluated independently of each other, hence each of the randomized ones gets its own
+         * source of random that is derived before any of them is started.
+         */
+        final long resnikSeed = rnd.nextLong();
+        final long linSeed = rnd.nextLong();
+        final long jcSeed = rnd.nextLong();
 
-        /* Second, with taking frequencies into account */
-        Result modelWithFrequencies = this.boqa.assignMarginals(obs, true);
-
-        ExperimentStore id = new ExperimentStore();
+        final ExperimentStore id = new ExperimentStore();
         id.obs = obs;
-        id.modelWithoutFrequencies = modelWithoutFrequencies;
-        id.modelWithFrequencies = modelWithFrequencies;
-        id.resnik = this.boqa.resnikScore(obs.observations, true, rnd);
-        id.lin = this.boqa.linScore(obs.observations, true, rnd);
-        id.jc = this.boqa.jcScore(obs.observations, true, rnd);
-        id.mb = this.boqa.mbScore(obs.observations);
+
+        ArrayList<RecursiveAction> methods = new ArrayList<RecursiveAction>();
+        methods.add(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                long startTime = System.nanoTime();
+                /* First, without taking frequencies into account */
+                id.modelWithoutFrequencies = Benchmark.this.boqa.assignMarginals(obs, false);
+                recordLatency("boqa", startTime);
+            }
+        });
+        methods.add(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                long startTime = System.nanoTime();
+                /* Second, with taking frequencies into account */
+                id.modelWithFrequencies = Benchmark.this.boqa.assignMarginals(obs, true);
+                recordLatency("boqa.freq", startTime);
+            }
+        });
+        methods.add(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                long startTime = System.nanoTime();
+                id.resnik = Benchmark.this.boqa.resnikScore(obs.observations, true, new RandomStream(resnikSeed));
+                recordLatency("resnik", startTime);
+            }
+        });
+        methods.add(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                long startTime = System.nanoTime();
+                id.lin = Benchmark.this.boqa.linScore(obs.observations, true, new RandomStream(linSeed));
+                recordLatency("lin", startTime);
+            }
+        });
+        methods.add(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                long startTime = System.nanoTime();
+                id.jc = Benchmark.this.boqa.jcScore(obs.observations, true, new RandomStream(jcSeed));
+                recordLatency("jc", startTime);
+            }
+        });
+        methods.add(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                long startTime = System.nanoTime();
+                id.mb = Benchmark.this.boqa.mbScore(obs.observations);
+                recordLatency("mb", startTime);
+            }
+        });
+
+        if (ForkJoinTask.inForkJoinPool()) {
+            /* Idle workers may steal the evaluation of single methods */
+            ForkJoinTask.invokeAll(methods);
+        } else {
+            for (RecursiveAction method : methods) {
+                method.invoke();
+            }
+        }
+
+        Result modelWithoutFrequencies = id.modelWithoutFrequencies;
 
         /******** The rest is for debugging purposes ********/
         if (this.VERBOSE || provideGraph) {
@@ -324,6 +485,7 @@ public void benchmark(BOQA boqa) throws InterruptedException, IOException
 
         /* TODO: Get rid of this ugliness */
         this.boqa = boqa;
+        this.simulators = new ThreadLocal<BOQA.ObservationSimulator>();
 
         double ALPHA = boqa.getSimulationAlpha();
         double BETA = boqa.getSimulationBeta();
@@ -414,13 +576,32 @@ public void benchmark(BOQA boqa) throws InterruptedException, IOException
         load.flush();
         load.close();
 
+        if (this.measureLatencies) {
+            /* Named after the columns of the results */
+            this.latencies = new LinkedHashMap<String, LatencyHistogram>();
+            for (String method : new String[] { "boqa", "boqa.freq", "resnik", "lin", "jc", "mb" }) {
+                this.latencies.put(method, new LatencyHistogram());
+            }
+        } else {
+            this.latencies = null;
+        }
+        long startTime = System.nanoTime();
+
         final BufferedWriter out = new BufferedWriter(new FileWriter(this.RESULT_NAME));
         final BufferedWriter summary =
             new BufferedWriter(new FileWriter(this.RESULT_NAME.split("\\.")[0] + "_summary.txt"));
 
-        ExecutorService es = Executors.newFixedThreadPool(numProcessors);
+        /*
+         * Runs are executed on a work-stealing pool. Each run may fork the evaluation of the different methods, such
+         * that workers that would otherwise idle at the end can help with long-running items. The number of runs that
+         * are queued at the same time is bounded so that not all of them are allocated upfront.
+         */
+        ForkJoinPool pool = new ForkJoinPool(this.THREADING_IN_SIMULATION ? numProcessors : 1);
+        final int maxPendingRuns = 2 * pool.getParallelism();
+        final Semaphore pendingRuns = new Semaphore(maxPendingRuns);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
 
-        Random rnd = new Random(9);
+        RandomStream rnd = new RandomStream(9);
 
         int run = 0;
 
@@ -430,88 +611,31 @@ public void benchmark(BOQA boqa) throws InterruptedException, IOException
                 final int item = i;
                 final int fixedRun = run++;
 
-                Runnable thread = new Runnable()
+                RecursiveAction thread = new RecursiveAction()
                 {
                     @Override
-                    public void run()
+                    protected void compute()
                     {
-                        StringBuilder resultBuilder = new StringBuilder();
-
-                        System.out.println("Seed = " + seed + " run = " + fixedRun);
-
-                        ExperimentStore store = processItem(item, false, new Random(seed));
-
-                        for (int j = 0; j < Benchmark.this.boqa.getNumberOfItems(); j++) {
-                            resultBuilder.append(fixedRun);
-                            resultBuilder.append("\t");
-                            resultBuilder.append(item == j ? 1 : 0);
-                            resultBuilder.append("\t");
-                            resultBuilder.append(store.modelWithoutFrequencies.getScore(j));
-                            resultBuilder.append("\t");
-                            resultBuilder.append(store.modelWithoutFrequencies.getMarginal(j));
-                            resultBuilder.append("\t");
-                            resultBuilder.append(store.modelWithoutFrequencies.getMarginalIdeal(j));
-                            resultBuilder.append("\t");
-                            resultBuilder.append(store.modelWithFrequencies.getScore(j));
-                            resultBuilder.append("\t");
-                            resultBuilder.append(store.modelWithFrequencies.getMarginal(j));
-                            resultBuilder.append("\t");
-                            resultBuilder.append(store.modelWithFrequencies.getMarginalIdeal(j));
-                            resultBuilder.append("\t");
-                            resultBuilder.append(store.resnik.getScore(j));
-                            resultBuilder.append("\t");
-                            resultBuilder.append(store.resnik.getMarginal(j));
-                            resultBuilder.append("\t");
-                            resultBuilder.append(store.lin.getScore(j));
-                            resultBuilder.append("\t");
-                            resultBuilder.append(store.lin.getMarginal(j));
-                            resultBuilder.append("\t");
-                            resultBuilder.append(store.jc.getScore(j));
-                            resultBuilder.append("\t");
-                            resultBuilder.append(store.jc.getMarginal(j));
-                            resultBuilder.append("\t");
-                            resultBuilder.append(store.mb.getScore(j));
-                            resultBuilder.append("\t");
-                            resultBuilder.append(Benchmark.this.boqa.hasItemFrequencies(item) ? 1 : 0);
-                            resultBuilder.append("\n");
-                        }
-
-                        synchronized (out) {
-                            try {
-                                out.append(resultBuilder.toString());
-                            } catch (IOException e) {
-                                // TODO Auto-generated catch block
-                                e.printStackTrace();
-                            }
-                        }
-
-                        String sum =
-                            fixedRun + "\t" + store.obs.observationStats.falsePositiveRate() + "\t"
-                                + store.obs.observationStats.falseNegativeRate() + "\n";
-
-                        synchronized (summary) {
-                            try {
-                                summary.write(sum);
-                            } catch (IOException e) {
-                                // TODO Auto-generated catch block
-                                e.printStackTrace();
+                        try {
+                            if (failure.get() == null) {
+                                processRun(item, fixedRun, seed, out, summary);
                             }
+                        } catch (RuntimeException | Error e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            pendingRuns.release();
                         }
                     }
                 };
 
-                if (this.THREADING_IN_SIMULATION) {
-                    es.execute(thread);
-                } else {
-                    thread.run();
-                }
+                pendingRuns.acquire();
+                pool.execute(thread);
             }
         }
 
-        es.shutdown();
-        while (!es.awaitTermination(10, TimeUnit.SECONDS)) {
-            ;
-        }
+        /* Wait until all runs have been finished */
+        pendingRuns.acquire(maxPendingRuns);
+        pool.shutdown();
 
         synchronized (out) {
             out.close();
@@ -520,5 +644,88 @@ public void run()
         synchronized (summary) {
             summary.close();
         }
+
+        if (failure.get() != null) {
+            throw new RuntimeException("A benchmark run failed", failure.get());
+        }
+
+        if (this.latencies != null) {
+            writeLatencies(new File(this.RESULT_NAME.split("\\.")[0] + "_latency.txt"), this.latencies,
+                System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Performs a single run of the benchmark for the given item and writes the results.
+     *
+     * @param item the item for which the observations are simulated
+     * @param run the number of the run
+     * @param seed the seed used for the simulation
+     * @param out where the results are written to
+     * @param summary where the summary is written to
+     */
+    private void processRun(int item, int run, long seed, BufferedWriter out, BufferedWriter summary)
+    {
+        StringBuilder resultBuilder = new StringBuilder();
+
+        logger.debug("Seed = {} run = {}", seed, run);
+
+        ExperimentStore store = processItem(item, false, new RandomStream(seed));
+
+        for (int j = 0; j < this.boqa.getNumberOfItems(); j++) {
+            resultBuilder.append(run);
+            resultBuilder.append("\t");
+            resultBuilder.append(item == j ? 1 : 0);
+            resultBuilder.append("\t");
+            resultBuilder.append(store.modelWithoutFrequencies.getScore(j));
+            resultBuilder.append("\t");
+            resultBuilder.append(store.modelWithoutFrequencies.getMarginal(j));
+            resultBuilder.append("\t");
+            resultBuilder.append(store.modelWithoutFrequencies.getMarginalIdeal(j));
+            resultBuilder.append("\t");
+            resultBuilder.append(store.modelWithFrequencies.getScore(j));
+            resultBuilder.append("\t");
+            resultBuilder.append(store.modelWithFrequencies.getMarginal(j));
+            resultBuilder.append("\t");
+            resultBuilder.append(store.modelWithFrequencies.getMarginalIdeal(j));
+            resultBuilder.append("\t");
+            resultBuilder.append(store.resnik.getScore(j));
+            resultBuilder.append("\t");
+            resultBuilder.append(store.resnik.getMarginal(j));
+            resultBuilder.append("\t");
+            resultBuilder.append(store.lin.getScore(j));
+            resultBuilder.append("\t");
+            resultBuilder.append(store.lin.getMarginal(j));
+            resultBuilder.append("\t");
+            resultBuilder.append(store.jc.getScore(j));
+            resultBuilder.append("\t");
+            resultBuilder.append(store.jc.getMarginal(j));
+            resultBuilder.append("\t");
+            resultBuilder.append(store.mb.getScore(j));
+            resultBuilder.append("\t");
+            resultBuilder.append(this.boqa.hasItemFrequencies(item) ? 1 : 0);
+            resultBuilder.append("\n");
+        }
+
+        synchronized (out) {
+            try {
+                out.append(resultBuilder.toString());
+            } catch (IOException e) {
+                /* Reaches the failure of the benchmark, which is rethrown when all runs are done */
+                throw new RuntimeException(e);
+            }
+        }
+
+        String sum =
+            run + "\t" + store.obs.observationStats.falsePositiveRate() + "\t"
+                + store.obs.observationStats.falseNegativeRate() + "\n";
+
+        synchronized (summary) {
+            try {
+                summary.write(sum);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 }
@@ -0,0 +1,184 @@
+/* Copyright (c) 2010-2012 Sebastian Bauer
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * * Neither the name of Sebastian Bauer nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE.  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sonumina.boqa.benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds. Values below 256 are counted exactly. Larger values are counted in buckets
+ * whose width is 1/128 of the power of two below the value, so percentiles are reported with a relative error of less
+ * than 1%. Values can be recorded by several threads at the same time.
+ *
+ * @author Sebastian Bauer
+ */
+public final class LatencyHistogram
+{
+    /** The number of bits that distinguish the buckets within a power of two */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Enough buckets for all non-negative long values */
+    private static final int NUMBER_OF_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_OF_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Returns the index of the bucket that counts the given value.
+     *
+     * @param value
+     * @return
+     */
+    private static int bucket(long value)
+    {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the largest value that is counted in the given bucket.
+     *
+     * @param bucket
+     * @return
+     */
+    private static long highestValue(int bucket)
+    {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = bucket - shift * SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Records the given latency.
+     *
+     * @param nanos the latency in nanoseconds. Negative values are counted as 0.
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        this.buckets.incrementAndGet(bucket(nanos));
+        this.count.incrementAndGet();
+        this.total.addAndGet(nanos);
+
+        long currentMax;
+        while (nanos > (currentMax = this.max.get())) {
+            if (this.max.compareAndSet(currentMax, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return
+     */
+    public long getCount()
+    {
+        return this.count.get();
+    }
+
+    /**
+     * Returns the sum of all recorded latencies in nanoseconds.
+     *
+     * @return
+     */
+    public long getTotal()
+    {
+        return this.total.get();
+    }
+
+    /**
+     * Returns the maximal recorded latency in nanoseconds.
+     *
+     * @return
+     */
+    public long getMax()
+    {
+        return this.max.get();
+    }
+
+    /**
+     * Returns the mean of the recorded latencies in nanoseconds.
+     *
+     * @return the mean or 0 if nothing has been recorded.
+     */
+    public double getMean()
+    {
+        long n = getCount();
+        return n == 0 ? 0 : getTotal() / (double) n;
+    }
+
+    /**
+     * Returns the latency below or at which the given percentage of the recorded latencies fall.
+     *
+     * @param percentile the percentage, e.g., 99 for the 99th percentile.
+     * @return the latency in nanoseconds or 0 if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long n = getCount();
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+            seen += this.buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+}
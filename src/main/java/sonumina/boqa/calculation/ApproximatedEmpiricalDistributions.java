@@ -35,33 +35,50 @@
 
 package sonumina.boqa.calculation;
 
-import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import sonumina.math.distribution.ApproximatedEmpiricalDistribution;
+import sonumina.math.distribution.IDistribution;
 
 /**
- * Basic container for distributions.
+ * Basic container for distributions. Distributions are safely published, i.e., reading is possible without any
+ * additional synchronization. The container may be backed by a store, in which case distributions are decoded from
+ * the store when they are accessed for the first time.
  *
  * @author Sebastian Bauer
  */
-public class ApproximatedEmpiricalDistributions implements Serializable
+public class ApproximatedEmpiricalDistributions
 {
-    private static final long serialVersionUID = 1L;
+    private final AtomicReferenceArray<IDistribution> distr;
 
-    private ApproximatedEmpiricalDistribution[] distr;
+    /** The backing store, may be null */
+    private final ScoreDistributionStore store;
 
     ApproximatedEmpiricalDistributions(int numberOfDistributions)
     {
-        this.distr = new ApproximatedEmpiricalDistribution[numberOfDistributions];
+        this.distr = new AtomicReferenceArray<IDistribution>(numberOfDistributions);
+        this.store = null;
     }
 
-    public ApproximatedEmpiricalDistribution getDistribution(int i)
+    ApproximatedEmpiricalDistributions(ScoreDistributionStore store)
     {
-        return this.distr[i];
+        this.distr = new AtomicReferenceArray<IDistribution>(store.getNumberOfSlots());
+        this.store = store;
     }
 
-    public void setDistribution(int i, ApproximatedEmpiricalDistribution dist)
+    public IDistribution getDistribution(int i)
     {
-        this.distr[i] = dist;
+        IDistribution d = this.distr.get(i);
+        if (d == null && this.store != null) {
+            d = this.store.getDistribution(i);
+            if (d != null && !this.distr.compareAndSet(i, null, d)) {
+                d = this.distr.get(i);
+            }
+        }
+        return d;
+    }
+
+    public void setDistribution(int i, IDistribution dist)
+    {
+        this.distr.set(i, dist);
     }
 }
@@ -35,32 +35,38 @@
 
 package sonumina.boqa.calculation;
 
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.regex.Matcher;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -79,6 +85,8 @@
 import ontologizer.types.ByteString;
 import sonumina.algorithms.Algorithms;
 import sonumina.math.distribution.ApproximatedEmpiricalDistribution;
+import sonumina.math.distribution.CompactEmpiricalDistribution;
+import sonumina.math.distribution.IDistribution;
 import sonumina.math.graph.SlimDirectedGraphView;
 
 /**
@@ -111,6 +119,9 @@
     /** Map items to their index */
     public HashMap<ByteString, Integer> item2Index;
 
+    /** Contains for each term the items that are annotated to it (including annotations to descendants) */
+    private ItemSet[] term2Items;
+
     /** Links items to terms */
     public int[][] items2Terms;
 
@@ -169,6 +180,18 @@
     /** Contains the descendants of the (i.e., children, grand-children, etc.) */
     public int[][] term2Descendants;
 
+    /** Contains the ancestors of each term (including the term) as bit vector */
+    private long[][] term2AncestorBits;
+
+    /** Contains the descendants of each term (including the term) as bit vector */
+    private long[][] term2DescendantBits;
+
+    /** The bit vector in which the bits of all terms are set */
+    private long[] allTermsBits;
+
+    /** Contains the annotated terms of each item (including ancestors) as bit vector */
+    private long[][] items2TermBits;
+
     /** Contains the order of the terms */
     public int[] termsInTopologicalOrder;
 
@@ -181,16 +204,60 @@
     /** Contains the term with maximum common ancestor of two terms */
     private int micaMatrix[][];
 
-    /** Contains the jaccard index */
-    private double jaccardMatrix[][];
+    /** Determines the term with maximum common ancestor of two terms if the matrix is not available */
+    private MicaCalculator micaCalculator;
+
+    /** Contains the jaccard index of term pairs that share items */
+    private SparseJaccardMatrix jaccardMatrix;
 
-    /** Contains the query cache, needs to be synched when accessed */
+    /** Contains the query cache. Reading is lock free but writes need to be synched */
     private QuerySets queryCache;
 
+    /** Pool used for parallel calculations, see getForkJoinPool() */
+    private ForkJoinPool forkJoinPool;
+
+    /** Receives the progress of the setup, may be null */
+    private volatile ISetupProgress setupProgress;
+
+    /** Set to true if the setup should be aborted */
+    private volatile boolean setupCancelled;
+
+    /** Number of consecutive items that are processed by a single parallel task */
+    private static final int ITEMS_PER_CHUNK = 32;
+
+    /** Number of consecutive random queries that are generated by a single parallel task */
+    private static final int QUERIES_PER_CHUNK = 4096;
+
+    /** Number of times chooseTerms() starts over when the chosen terms cannot be extended to an antichain */
+    private static final int MAX_ANTICHAIN_ATTEMPTS = 64;
+
+    /** The seed from which the random streams for the random queries of each size are derived */
+    private static final long RANDOM_QUERIES_SEED = 9;
+
+    /**
+     * Version of the way random queries are drawn. Must be increased whenever the sampler or the random number
+     * generator changes, so that score distributions stored before are considered to be stale. Version 1 draws
+     * antichains directly, version 2 uses split random streams.
+     */
+    private static final int RANDOM_QUERIES_VERSION = 2;
+
     /** Used to parse frequency information */
-    public static Pattern frequencyPattern = Pattern.compile("(\\d+)\\.?(\\d*)\\s*%");
+    public static Pattern frequencyPattern = FrequencyParser.PERCENTAGE_PATTERN;
 
-    public static Pattern frequencyFractionPattern = Pattern.compile("(\\d+)/(\\d+)");
+    public static Pattern frequencyFractionPattern = FrequencyParser.FRACTION_PATTERN;
+
+    /** Parses and remembers the frequency information of the annotations */
+    private final FrequencyParser frequencyParser = new FrequencyParser();
+
+    /** Per-thread scratch bit vectors used by mostSpecificTerms() */
+    private final ThreadLocal<long[][]> mostSpecificTermsScratch = new ThreadLocal<long[][]>();
+
+    /** Per-thread scratch bit vector used by chooseTerms() */
+    private final ThreadLocal<long[]> chooseTermsScratch = new ThreadLocal<long[]>();
+
+    /** The query sizes for which chooseTerms() found no antichain, which have been reported already */
+    private final Set<Integer> sizesWithoutAntichain =
+        Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
 
     /* Settings for generation of random data */
     // private final double ALPHA = 0.002; // 0.01
@@ -216,6 +283,12 @@
 
     private final int NUMBER_OF_BINS_IN_APPROXIMATED_SCORE_DISTRIBUTION = 10000;
 
+    /** Represent score distributions compactly with a bounded relative error in the upper tail */
+    private boolean COMPACT_SCORE_DISTRIBUTION = false;
+
+    /** The relative error of the upper tail of the compact score distributions */
+    private final double RELATIVE_ERROR_OF_COMPACT_SCORE_DISTRIBUTION = 0.01;
+
     private int maxTerms = -1; /* Defines the maximal number of terms a query can have */
 
     private int maxFrequencyTerms = 10; /* Maximal number of frequency terms (k in the paper) */
@@ -243,9 +316,24 @@
     /** Use cached MaxIC terms. Speeds up Resnik */
     private boolean PRECALCULATE_MAXICS = true;
 
+    /**
+     * Number of term pairs for which the maxIC terms are cached if they are not precalculated. Disabled by default as
+     * the bitset based calculation is usually cheaper than a synchronized cache access.
+     */
+    private int MICA_CACHE_SIZE = 0;
+
     /** Use precalculated max items. Speeds up Resnik */
     private boolean PRECALCULATE_ITEM_MAXS = true;
 
+    /** Determine the cases of each item independently via bit counting instead of walking the diff vectors */
+    private boolean POPCOUNT_SCORING = true;
+
+    /** The precision in which precalculated max items are stored */
+    private ItemMaxScoreTable.Precision ITEM_MAXS_PRECISION = ItemMaxScoreTable.Precision.FLOAT;
+
+    /** Back the precalculated max items by memory-mapped files */
+    private boolean MAP_ITEM_MAXS = false;
+
     /** Cache the queries */
     private final boolean CACHE_RANDOM_QUERIES = true;
 
@@ -267,6 +355,21 @@
     /** Defines the maximal query size for the cached distribution */
     private int MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION = 20;
 
+    /** Stop sampling random queries as soon as the p value is decided */
+    private boolean ADAPTIVE_PVALUES = false;
+
+    /** The significance level against which an adaptive p value is decided */
+    private double ADAPTIVE_PVALUE_SIGNIFICANCE = 0.05;
+
+    /** The relative error (half width of the confidence interval) at which an adaptive p value is considered exact */
+    private double ADAPTIVE_PVALUE_RELATIVE_ERROR = 0.1;
+
+    /** Number of samples drawn in a single round of the adaptive p value estimation */
+    private static final int ADAPTIVE_PVALUE_BATCH_SIZE = 100;
+
+    /** The z value of the confidence interval used for the adaptive p value estimation (corresponds to 99.9%) */
+    private static final double ADAPTIVE_PVALUE_Z = 3.29;
+
     /* Some configuration stuff */
 
     /**
@@ -389,6 +492,17 @@ public void setPrecalculateMaxICs(boolean precalc)
         this.PRECALCULATE_MAXICS = precalc;
     }
 
+    /**
+     * Sets the number of term pairs for which the maxIC terms are cached when they are not precalculated. A size of 0
+     * disables the cache.
+     *
+     * @param size
+     */
+    public void setMicaCacheSize(int size)
+    {
+        this.MICA_CACHE_SIZE = size;
+    }
+
     /**
      * Set whether we cache the score distribution.
      *
@@ -399,6 +513,19 @@ public void setCacheScoreDistribution(boolean cache)
         this.CACHE_SCORE_DISTRIBUTION = cache;
     }
 
+    /**
+     * Sets whether the score distributions shall be represented compactly. Compact distributions keep only a subset
+     * of the sorted random scores such that P(X >= x) has a bounded relative error. Their size grows only
+     * logarithmically with the size of the score distribution, while the default representation uses a histogram
+     * with a fixed number of bins.
+     *
+     * @param compact
+     */
+    public void setCompactScoreDistribution(boolean compact)
+    {
+        this.COMPACT_SCORE_DISTRIBUTION = compact;
+    }
+
     /**
      * Set whether we store the score distribution.
      *
@@ -419,6 +546,40 @@ public void setPrecalculateItemMaxs(boolean precalc)
         this.PRECALCULATE_ITEM_MAXS = precalc;
     }
 
+    /**
+     * Sets whether the cases of the items are determined independently by counting the bits of the item's terms
+     * that fall into masks derived from the observations. Otherwise, the hidden states are updated along the diff
+     * vectors from item to item.
+     *
+     * @param popcount
+     */
+    public void setPopcountScoring(boolean popcount)
+    {
+        this.POPCOUNT_SCORING = popcount;
+    }
+
+    /**
+     * Sets the precision in which the precalculated item maxs are stored. Floats halve the memory of doubles, quantized
+     * values need a quarter of it. Quantized values have an absolute error of at most 1/131070 of the range of the
+     * values of a term.
+     *
+     * @param precision
+     */
+    public void setItemMaxsPrecision(ItemMaxScoreTable.Precision precision)
+    {
+        this.ITEM_MAXS_PRECISION = precision;
+    }
+
+    /**
+     * Sets whether the precalculated item maxs shall be backed by memory-mapped temporary files instead of the heap.
+     *
+     * @param mapped
+     */
+    public void setMapItemMaxs(boolean mapped)
+    {
+        this.MAP_ITEM_MAXS = mapped;
+    }
+
     /**
      * Sets whether score distribution should be loaded.
      *
@@ -450,6 +611,49 @@ public int getSizeOfScoreDistribution()
         return this.SIZE_OF_SCORE_DISTRIBUTION;
     }
 
+    /**
+     * Sets whether p values that are not based on a cached score distribution should be determined adaptively. If
+     * set, the sampling of random queries stops as soon as the confidence interval of the p value lies completely
+     * below or above the significance level or as soon as the relative error is small enough. At most
+     * getSizeOfScoreDistribution() random queries are drawn.
+     *
+     * @param adaptive
+     */
+    public void setAdaptivePValues(boolean adaptive)
+    {
+        this.ADAPTIVE_PVALUES = adaptive;
+    }
+
+    /**
+     * Returns whether p values are determined adaptively.
+     *
+     * @return
+     */
+    public boolean getAdaptivePValues()
+    {
+        return this.ADAPTIVE_PVALUES;
+    }
+
+    /**
+     * Sets the significance level that is used to decide adaptive p values.
+     *
+     * @param significance
+     */
+    public void setAdaptivePValueSignificance(double significance)
+    {
+        this.ADAPTIVE_PVALUE_SIGNIFICANCE = significance;
+    }
+
+    /**
+     * Sets the relative error at which the estimation of an adaptive p value stops.
+     *
+     * @param relativeError
+     */
+    public void setAdaptivePValueRelativeError(double relativeError)
+    {
+        this.ADAPTIVE_PVALUE_RELATIVE_ERROR = relativeError;
+    }
+
     /**
      * Returns the number of terms considered in for frequency analysis.
      *
@@ -582,12 +786,183 @@ private Configuration.NodeCase getNodeCase(int node, boolean[] hidden, boolean[]
      */
     private void determineCases(boolean[] observedTerms, boolean[] hidden, Configuration stats)
     {
-        int numTerms = this.slimGraph.getNumberOfVertices();
+        determineCases(Bits.fromBooleans(observedTerms), Bits.fromBooleans(hidden), stats);
+    }
+
+    /**
+     * The cases of all terms given some observations that don't depend on the hidden states, along with masks of the
+     * terms whose case depends on the hidden states.
+     *
+     * @author Sebastian Bauer
+     */
+    private static class ObservedCases
+    {
+        /** The cases that don't depend on the hidden states, i.e., inherited and faulty ones */
+        final Configuration fixed = new Configuration();
+
+        /** The observed terms whose case depends on the hidden state */
+        final long[] observed;
+
+        /** The unobserved terms whose case depends on the hidden state */
+        final long[] unobserved;
+
+        final int numberOfObserved;
+
+        final int numberOfUnobserved;
+
+        ObservedCases(long[] observed, long[] unobserved)
+        {
+            this.observed = observed;
+            this.unobserved = unobserved;
+            this.numberOfObserved = Bits.count(observed);
+            this.numberOfUnobserved = Bits.count(unobserved);
+        }
+
+        /**
+         * Accumulates the cases of all terms given the hidden states in stats.
+         *
+         * @param hidden
+         * @param stats
+         */
+        void addCases(long[] hidden, Configuration stats)
+        {
+            int truePositives = 0;
+            int falseNegatives = 0;
+            for (int w = 0; w < hidden.length; w++) {
+                truePositives += Long.bitCount(hidden[w] & this.observed[w]);
+                falseNegatives += Long.bitCount(hidden[w] & this.unobserved[w]);
+            }
+
+            for (Configuration.NodeCase c : Configuration.NodeCase.values()) {
+                stats.add(c, this.fixed.getCases(c));
+            }
+            stats.add(Configuration.NodeCase.TRUE_POSITIVE, truePositives);
+            stats.add(Configuration.NodeCase.FALSE_NEGATIVE, falseNegatives);
+            stats.add(Configuration.NodeCase.FALSE_POSITIVE, this.numberOfObserved - truePositives);
+            stats.add(Configuration.NodeCase.TRUE_NEGATIVE, this.numberOfUnobserved - falseNegatives);
+        }
+    }
+
+    /**
+     * Determines the cases of all terms that follow from the given observations alone. This yields the same cases as
+     * getNodeCase() applied to each term, but whole words of terms are classified at once.
+     *
+     * @param observed
+     * @return
+     */
+    private ObservedCases determineObservedCases(long[] observed)
+    {
+        int words = this.allTermsBits.length;
+
+        /* The terms whose case has not been decided yet */
+        long[] remaining = this.allTermsBits.clone();
+        int faults = 0;
+        int inheritTrue = 0;
+        int inheritFalse = 0;
+
+        if (areFalsePositivesPropagated()) {
+            /* Terms with an observed child inherit the true state */
+            long[] observedChild = new long[words];
+            for (int t : Bits.toIndices(observed)) {
+                for (int parent : this.term2Parents[t]) {
+                    Bits.set(observedChild, parent);
+                }
+            }
+
+            for (int w = 0; w < words; w++) {
+                inheritTrue += Long.bitCount(observedChild[w] & observed[w]);
+                faults += Long.bitCount(observedChild[w] & ~observed[w]);
+                remaining[w] &= ~observedChild[w];
+            }
+        }
+
+        if (areFalseNegativesPropagated()) {
+            /* Terms with an unobserved parent inherit the false state */
+            long[] unobservedParent = new long[words];
+            for (int w = 0; w < words; w++) {
+                long unobserved = this.allTermsBits[w] & ~observed[w];
+                while (unobserved != 0) {
+                    int t = (w << 6) + Long.numberOfTrailingZeros(unobserved);
+                    for (int child : this.term2Children[t]) {
+                        Bits.set(unobservedParent, child);
+                    }
+                    unobserved &= unobserved - 1;
+                }
+            }
+
+            for (int w = 0; w < words; w++) {
+                long affected = unobservedParent[w] & remaining[w];
+                inheritFalse += Long.bitCount(affected & ~observed[w]);
+                faults += Long.bitCount(affected & observed[w]);
+                remaining[w] &= ~unobservedParent[w];
+            }
+        }
+
+        long[] remainingObserved = new long[words];
+        long[] remainingUnobserved = new long[words];
+        for (int w = 0; w < words; w++) {
+            remainingObserved[w] = remaining[w] & observed[w];
+            remainingUnobserved[w] = remaining[w] & ~observed[w];
+        }
+
+        ObservedCases cases = new ObservedCases(remainingObserved, remainingUnobserved);
+        cases.fixed.add(Configuration.NodeCase.INHERIT_TRUE, inheritTrue);
+        cases.fixed.add(Configuration.NodeCase.INHERIT_FALSE, inheritFalse);
+        if (faults != 0) {
+            logger.error("{} impossible node configurations encountered!", faults);
+            cases.fixed.add(Configuration.NodeCase.FAULT, faults);
+        }
+        return cases;
+    }
+
+    /**
+     * Determines the cases of the observed states given the hidden states, both represented as bit vectors.
+     * Accumulates them in states.
+     *
+     * @param observed
+     * @param hidden
+     * @param stats
+     */
+    private void determineCases(long[] observed, long[] hidden, Configuration stats)
+    {
+        determineObservedCases(observed).addCases(hidden, stats);
+    }
+
+    /**
+     * Determines the cases of the given item directly, i.e., without relying on the states of the previous item. For
+     * each configuration of the item, the hidden states are intersected with the masks of the observed cases.
+     *
+     * @param item
+     * @param cases the observed cases as returned by determineObservedCases().
+     * @param takeFrequenciesIntoAccount select, if frequencies should be taken into account.
+     * @return
+     */
+    private WeightedConfigurationList determineCasesForItemDirectly(int item, ObservedCases cases,
+        boolean takeFrequenciesIntoAccount)
+    {
+        WeightedConfigurationList statsList = new WeightedConfigurationList();
+
+        if (!takeFrequenciesIntoAccount) {
+            Configuration stats = new Configuration();
+            cases.addCases(this.items2TermBits[item], stats);
+            statsList.add(stats, 0);
+        } else {
+            /* The configurations of the item are given as diffs to the previous configuration */
+            long[] hidden = new long[this.allTermsBits.length];
+            for (int c = 0; c < this.diffOnTermsFreqs[item].length; c++) {
+                for (int t : this.diffOnTermsFreqs[item][c]) {
+                    Bits.set(hidden, t);
+                }
+                for (int t : this.diffOffTermsFreqs[item][c]) {
+                    Bits.clear(hidden, t);
+                }
 
-        for (int i = 0; i < numTerms; i++) {
-            Configuration.NodeCase c = getNodeCase(i, hidden, observedTerms);
-            stats.increment(c);
+                Configuration stats = new Configuration();
+                cases.addCases(hidden, stats);
+                statsList.add(stats, this.factors[item][c]);
+            }
         }
+        return statsList;
     }
 
     private long timeDuration;
@@ -637,7 +1012,14 @@ private WeightedConfigurationList determineCasesForItem(int item, boolean[] obse
             stats = previousStats;
         }
 
-        if (!takeFrequenciesIntoAccount) {
+        if (!takeFrequenciesIntoAccount && previousHidden == null) {
+            /* Without the states of the previous item, the diff vectors can't be applied */
+            for (int t : this.items2Terms[item]) {
+                hidden[t] = true;
+            }
+            determineCases(observed, hidden, stats);
+            statsList.add(stats.clone(), 0);
+        } else if (!takeFrequenciesIntoAccount) {
             /* New */
             int[] diffOn = this.diffOnTerms[item];
             int[] diffOff = this.diffOffTerms[item];
@@ -870,206 +1252,351 @@ public boolean orChildren(int v, boolean[] states)
     }
 
     /**
-     * Generates observation according to the model parameter for the given item.
+     * Generates observation according to the model parameter for the given item. Callers that generate many
+     * observations should use a simulator of their own instead, see createObservationSimulator().
      *
      * @param item
      * @return
      */
     public Observations generateObservations(int item, Random rnd)
     {
-        int retry = 0;
+        return createObservationSimulator().generateObservations(item, rnd);
+    }
 
-        Observations o = null;
+    /**
+     * Creates a new simulator for observations according to the current model parameters.
+     *
+     * @return
+     */
+    public ObservationSimulator createObservationSimulator()
+    {
+        return new ObservationSimulator();
+    }
 
-        do {
-            int i;
-            int[] falsePositive = new int[this.slimGraph.getNumberOfVertices()];
-            int numFalsePositive = 0;
-            int[] falseNegative = new int[this.slimGraph.getNumberOfVertices()];
-            int numFalseNegative = 0;
-            int numMissedInHidden = 0;
+    /**
+     * Simulates observations of items according to the model parameters. Observations are represented as bit vectors,
+     * i.e., as arrays of words in which bit (i % 64) of word (i / 64) denotes whether term i is on. The bit vectors are
+     * provided by the caller, so they can be reused for any number of simulations. Noise is injected by drawing the
+     * distance to the next flipped term from a geometric distribution rather than drawing a number for each term.
+     * <p>
+     * A simulator keeps internal scratch space, so it must not be used by several threads at the same time.
+     *
+     * @author Sebastian Bauer
+     */
+    public class ObservationSimulator
+    {
+        /** The terms that are on in the noise free observations */
+        private final int[] positives;
 
-            int numPositive = 0;
-            int numHidden = 0;
+        /** The terms that are turned off by noise */
+        private final int[] falseNegatives;
 
-            boolean[] observations = new boolean[this.slimGraph.getNumberOfVertices()];
-            boolean[] hidden = new boolean[this.slimGraph.getNumberOfVertices()];
+        /** The terms that are turned on by noise */
+        private final int[] falsePositives;
 
-            boolean CONSIDER_ONLY_DIRECT_ASSOCIATIONS = true;
+        /** The hidden terms of generateObservations() */
+        private final long[] hidden;
 
-            if (CONSIDER_ONLY_DIRECT_ASSOCIATIONS) {
-                logger.debug("Item {} has {} annotations", item, this.items2DirectTerms[item].length);
-                for (i = 0; i < this.items2DirectTerms[item].length; i++) {
-                    boolean state = true;
+        /** The observed terms of generateObservations() */
+        private final long[] observed;
 
-                    if (respectFrequencies()) {
-                        state = rnd.nextDouble() < this.items2TermFrequencies[item][i];
+        private ObservationSimulator()
+        {
+            int numTerms = BOQA.this.slimGraph.getNumberOfVertices();
+            this.positives = new int[numTerms];
+            this.falseNegatives = new int[numTerms];
+            this.falsePositives = new int[numTerms];
+            this.hidden = new long[BOQA.this.allTermsBits.length];
+            this.observed = new long[BOQA.this.allTermsBits.length];
+        }
 
-                        logger.debug(this.items2DirectTerms[item][i] + "("
-                            + this.items2TermFrequencies[item][i] + ")="
-                            + state);
+        /**
+         * Generates observations of the given item along with the statistics of the noise. Unless empty observations
+         * are allowed, the simulation is repeated up to 50 times if no term is observed.
+         *
+         * @param item
+         * @param rnd
+         * @return
+         */
+        public Observations generateObservations(int item, Random rnd)
+        {
+            long[] hidden = this.hidden;
+            long[] observations = this.observed;
+
+            for (int retry = 0;; retry++) {
+                int numPositive = simulate(item, rnd, hidden, observations);
+
+                if (logger.isDebugEnabled()) {
+                    int numFalseNegative = 0;
+                    int numFalsePositive = 0;
+                    for (int w = 0; w < observations.length; w++) {
+                        numFalsePositive += Long.bitCount(observations[w] & ~hidden[w]);
+                        numFalseNegative += Long.bitCount(hidden[w] & ~observations[w]);
                     }
 
-                    if (state) {
-                        hidden[this.items2DirectTerms[item][i]] = state;
-                        observations[this.items2DirectTerms[item][i]] = state;
-
-                        activateAncestors(this.items2DirectTerms[item][i], hidden);
-                        activateAncestors(this.items2DirectTerms[item][i], observations);
+                    logger.debug("Number of hidden positives: {}", Bits.count(hidden));
+                    logger.debug("Number of observed positives: {}", numPositive);
+                    logger.debug("Raw number of false positives: {}", numFalsePositive);
+                    logger.debug("Raw number of false negatives {}", numFalseNegative);
+                }
 
-                        numPositive++;
-                    } else {
-                        numMissedInHidden++;
-                    }
+                if (numPositive == 0 && !BOQA.this.ALLOW_EMPTY_OBSERVATIONS && retry < 50) {
+                    /* Queries with no query make no sense */
+                    continue;
                 }
 
-            } else {
-                for (i = 0; i < this.items2Terms[item].length; i++) {
-                    hidden[this.items2Terms[item][i]] = true;
-                    observations[this.items2Terms[item][i]] = true;
-                    numPositive++;
+                Configuration stats = new Configuration();
+                determineCases(observations, hidden, stats);
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Number of modelled false postives {} (alpha={}%)",
+                        stats.getCases(Configuration.NodeCase.FALSE_POSITIVE), stats.falsePositiveRate());
+                    logger.debug("Number of modelled false negatives {}  (beta={}%)",
+                        stats.getCases(Configuration.NodeCase.FALSE_NEGATIVE), stats.falseNegativeRate());
                 }
+
+                Observations o = new Observations();
+                o.item = item;
+                o.observations = Bits.toBooleans(observations, BOQA.this.slimGraph.getNumberOfVertices());
+                o.observationStats = stats;
+                return o;
             }
+        }
 
-            /* Fill in false and true positives */
-            for (i = 0; i < observations.length; i++) {
-                double r = rnd.nextDouble();
-                if (observations[i]) {
-                    if (r < this.BETA) {
-                        falseNegative[numFalseNegative++] = i;
-                        // System.out.println("false negative " + i);
-                    }
-                } else {
-                    if (r < this.ALPHA) {
-                        falsePositive[numFalsePositive++] = i;
-                        // System.out.println("false positive " + i);
-                    }
+        /**
+         * Allocates bit vectors that can hold hidden or observed terms.
+         *
+         * @param count the number of bit vectors
+         * @return
+         */
+        public long[][] newBuffers(int count)
+        {
+            return new long[count][BOQA.this.allTermsBits.length];
+        }
+
+        /**
+         * Simulates count observations of the given item. The i-th simulation is stored in hidden[i] and
+         * observations[i].
+         *
+         * @param item
+         * @param rnd
+         * @param count
+         * @param hidden the bit vectors receiving the terms of the item that are on, may be null.
+         * @param observations the bit vectors receiving the observed terms.
+         */
+        public void simulate(int item, Random rnd, int count, long[][] hidden, long[][] observations)
+        {
+            for (int i = 0; i < count; i++) {
+                simulate(item, rnd, hidden != null ? hidden[i] : null, observations[i]);
+            }
+        }
+
+        /**
+         * Simulates an observation of the given item.
+         *
+         * @param item
+         * @param rnd
+         * @param hidden the bit vector receiving the terms of the item that are on, may be null.
+         * @param observations the bit vector receiving the observed terms.
+         * @return the number of observed terms.
+         */
+        public int simulate(int item, Random rnd, long[] hidden, long[] observations)
+        {
+            int i;
+
+            Arrays.fill(observations, 0);
+
+            int[] directTerms = BOQA.this.items2DirectTerms[item];
+            for (i = 0; i < directTerms.length; i++) {
+                boolean state = true;
+
+                if (respectFrequencies()) {
+                    state = rnd.nextDouble() < BOQA.this.items2TermFrequencies[item][i];
+                }
+
+                if (state) {
+                    activateAncestors(directTerms[i], observations);
                 }
             }
+            if (hidden != null) {
+                System.arraycopy(observations, 0, hidden, 0, observations.length);
+            }
+
+            /* Determine false negatives among the positives and false positives among the negatives */
+            int numPositives = Bits.toIndices(observations, this.positives);
+            int numFalseNegatives = 0;
+            double logComplementOfBeta = Math.log1p(-BOQA.this.BETA);
+            int p = geometricSkip(rnd, logComplementOfBeta, numPositives);
+            while (p < numPositives) {
+                this.falseNegatives[numFalseNegatives++] = this.positives[p];
+                p += 1 + geometricSkip(rnd, logComplementOfBeta, numPositives);
+            }
+
+            int numFalsePositives = 0;
+            double logComplementOfAlpha = Math.log1p(-BOQA.this.ALPHA);
+            int numTerms = BOQA.this.slimGraph.getNumberOfVertices();
+            int n = nextNegative(observations, 0, geometricSkip(rnd, logComplementOfAlpha, numTerms));
+            while (n != -1) {
+                this.falsePositives[numFalsePositives++] = n;
+                n = nextNegative(observations, n + 1, geometricSkip(rnd, logComplementOfAlpha, numTerms));
+            }
 
             /* apply false negatives */
             if (areFalseNegativesPropagated()) {
                 /*
                  * false negative, but also make all descendants negative. They are considered as inherited in this case
                  */
-                for (i = 0; i < numFalseNegative; i++) {
-                    observations[falseNegative[i]] = false;
-                    deactivateDecendants(falseNegative[i], observations);
+                for (i = 0; i < numFalseNegatives; i++) {
+                    deactivateDecendants(this.falseNegatives[i], observations);
                 }
             } else {
                 /* false negative */
-                for (i = 0; i < numFalseNegative; i++) {
-                    observations[falseNegative[i]] = false;
+                for (i = 0; i < numFalseNegatives; i++) {
+                    Bits.clear(observations, this.falseNegatives[i]);
                 }
 
                 /* fix for true path rule */
-                for (i = 0; i < observations.length; i++) {
-                    if (observations[i]) {
-                        activateAncestors(i, observations);
-                    }
+                int numObserved = Bits.toIndices(observations, this.positives);
+                for (i = 0; i < numObserved; i++) {
+                    activateAncestors(this.positives[i], observations);
                 }
             }
 
             /* apply false positives */
             if (areFalsePositivesPropagated()) {
                 /* fix for true path rule */
-                for (i = 0; i < numFalsePositive; i++) {
-                    observations[falsePositive[i]] = true;
-                    activateAncestors(falsePositive[i], observations);
+                for (i = 0; i < numFalsePositives; i++) {
+                    activateAncestors(this.falsePositives[i], observations);
                 }
             } else {
                 /* False positive */
-                for (i = 0; i < numFalsePositive; i++) {
-                    observations[falsePositive[i]] = true;
+                for (i = 0; i < numFalsePositives; i++) {
+                    Bits.set(observations, this.falsePositives[i]);
                 }
 
-                /* fix for the true path rule (reverse case) */
-                for (i = 0; i < observations.length; i++) {
-                    if (!observations[i]) {
-                        deactivateDecendants(i, observations);
+                /*
+                 * fix for the true path rule (reverse case), i.e., a term stays on only if all of its ancestors are on
+                 */
+                int numObserved = Bits.toIndices(observations, this.positives);
+                for (i = 0; i < numObserved; i++) {
+                    int t = this.positives[i];
+                    long[] ancestors = BOQA.this.term2AncestorBits[t];
+                    for (int w = 0; w < ancestors.length; w++) {
+                        if ((ancestors[w] & ~observations[w]) != 0) {
+                            Bits.clear(observations, t);
+                            break;
+                        }
                     }
                 }
             }
 
-            if (this.maxTerms != -1) {
-                IntArray sparse = new IntArray(observations);
-                int[] mostSpecific = mostSpecificTerms(sparse.get());
-                if (mostSpecific.length > this.maxTerms) {
-                    int[] newTerms = new int[this.maxTerms];
+            if (BOQA.this.maxTerms != -1) {
+                limitObservations(rnd, observations);
+            }
 
-                    /* Now randomly choose maxTerms and place them in new Terms */
-                    for (int j = 0; j < this.maxTerms; j++) {
-                        int r = rnd.nextInt(mostSpecific.length - j);
-                        newTerms[j] = mostSpecific[r];
-                        mostSpecific[r] = mostSpecific[mostSpecific.length - j - 1]; /*
-                                                                                      * Move last selectable term into
-                                                                                      * the place of the chosen one
-                                                                                      */
-                    }
-                    for (int j = 0; j < observations.length; j++) {
-                        observations[j] = false;
-                    }
-                    for (int t : newTerms) {
-                        observations[t] = true;
-                        activateAncestors(t, observations);
+            return Bits.count(observations);
+        }
+
+        /**
+         * Restricts the given observations to a random selection of maxTerms of its most specific terms, if there are
+         * more.
+         *
+         * @param rnd
+         * @param observations
+         */
+        private void limitObservations(Random rnd, long[] observations)
+        {
+            int maxTerms = BOQA.this.maxTerms;
+
+            /*
+             * As the observations obey the true path rule, the most specific terms are those without observed
+             * children
+             */
+            int numObserved = Bits.toIndices(observations, this.positives);
+            int numMostSpecific = 0;
+            for (int i = 0; i < numObserved; i++) {
+                int t = this.positives[i];
+                boolean mostSpecific = true;
+                for (int c : BOQA.this.term2Children[t]) {
+                    if (Bits.get(observations, c)) {
+                        mostSpecific = false;
+                        break;
                     }
                 }
-            }
-
-            for (i = 0; i < hidden.length; i++) {
-                if (hidden[i]) {
-                    numHidden++;
+                if (mostSpecific) {
+                    this.positives[numMostSpecific++] = t;
                 }
             }
 
-            if (logger.isDebugEnabled()) {
-                logger.debug("Number of terms that were missed in hidden: " + numMissedInHidden);
-                logger.debug("Number of hidden positives:" + numPositive);
-                logger.debug("Number of hidden negatives: " + numHidden);
+            if (numMostSpecific <= maxTerms) {
+                return;
             }
 
-            numPositive = 0;
-            numFalseNegative = 0;
-            numFalsePositive = 0;
-            for (i = 0; i < observations.length; i++) {
-                if (observations[i]) {
-                    if (!hidden[i]) {
-                        numFalsePositive++;
-                    }
-                    numPositive++;
-                } else {
-                    if (hidden[i]) {
-                        numFalseNegative++;
-                    }
-                }
+            /* Now randomly choose maxTerms and place them at the end of the most specific terms */
+            for (int j = 0; j < maxTerms; j++) {
+                int r = rnd.nextInt(numMostSpecific - j);
+                int chosen = this.positives[r];
+                this.positives[r] = this.positives[numMostSpecific - j - 1];
+                this.positives[numMostSpecific - j - 1] = chosen;
             }
-
-            logger.debug("Number of observed positives: {}", numPositive);
-            logger.debug("Raw number of false positives: {}", numFalsePositive);
-            logger.debug("Raw number of false negatives {}", numFalseNegative);
-
-            if (numPositive == 0 && !this.ALLOW_EMPTY_OBSERVATIONS) {
-                /* Queries with no query make no sense */
-                retry++;
-                continue;
+            Arrays.fill(observations, 0);
+            for (int j = numMostSpecific - maxTerms; j < numMostSpecific; j++) {
+                activateAncestors(this.positives[j], observations);
             }
+        }
 
-            Configuration stats = new Configuration();
-            determineCases(observations, hidden, stats);
+        /**
+         * Returns the term that is off in the given observations and that is preceded by skip such terms starting
+         * at the given term.
+         *
+         * @param observations
+         * @param from the first term that is considered
+         * @param skip the number of negative terms that are skipped
+         * @return the term or -1 if there is no such term.
+         */
+        private int nextNegative(long[] observations, int from, int skip)
+        {
+            long[] allTerms = BOQA.this.allTermsBits;
+            int w = from >>> 6;
+            if (w >= allTerms.length) {
+                return -1;
+            }
 
-            if (logger.isDebugEnabled()) {
-                logger.debug("Number of modelled false postives {} (alpha={}%)",
-                    stats.getCases(Configuration.NodeCase.FALSE_POSITIVE), stats.falsePositiveRate());
-                logger.debug("Number of modelled false negatives {}  (beta={}%)",
-                    stats.getCases(Configuration.NodeCase.FALSE_NEGATIVE), stats.falseNegativeRate());
+            long negatives = allTerms[w] & ~observations[w] & (-1L << from);
+            while (true) {
+                int c = Long.bitCount(negatives);
+                if (skip < c) {
+                    for (; skip > 0; skip--) {
+                        negatives &= negatives - 1;
+                    }
+                    return (w << 6) + Long.numberOfTrailingZeros(negatives);
+                }
+                skip -= c;
+                if (++w == allTerms.length) {
+                    return -1;
+                }
+                negatives = allTerms[w] & ~observations[w];
             }
+        }
+    }
+
+    /**
+     * Returns the number of failures before the first success of Bernoulli trials.
+     *
+     * @param rnd
+     * @param logComplement the logarithm of the complement of the success probability
+     * @param limit the maximal number that is returned
+     * @return the number of failures or limit if there are at least so many failures.
+     */
+    private static int geometricSkip(Random rnd, double logComplement, int limit)
+    {
+        if (logComplement == 0) {
+            return limit;
+        }
 
-            o = new Observations();
-            o.item = item;
-            o.observations = observations;
-            o.observationStats = stats;
-        } while (!this.ALLOW_EMPTY_OBSERVATIONS && retry++ < 50);
-        return o;
+        /* Note that 1 - nextDouble() is in (0,1] */
+        double skip = Math.floor(Math.log(1 - rnd.nextDouble()) / logComplement);
+        return skip < limit ? (int) skip : limit;
     }
 
     /**
@@ -1099,37 +1626,135 @@ public void activateAncestors(int i, boolean[] observations)
     }
 
     /**
-     * Activates the ancestors of the given node.
+     * Activates the given node and its ancestors within the given bit vector.
      *
      * @param i
      * @param observations
      */
-    private void deactivateDecendants(int i, boolean[] observations)
+    private void activateAncestors(int i, long[] observations)
     {
-        for (int j = 0; j < this.term2Descendants[i].length; j++) {
-            observations[this.term2Descendants[i][j]] = false;
-        }
+        Bits.or(observations, this.term2AncestorBits[i]);
     }
 
     /**
-     * Calculates a "fingerprint" for the current data. Note that the fingerprint is not necessary unqiue but it should
-     * be sufficient for the purpose.
+     * Deactivates the given node and its descendants within the given bit vector.
      *
+     * @param i
+     * @param observations
+     */
+    private void deactivateDecendants(int i, long[] observations)
+    {
+        Bits.andNot(observations, this.term2DescendantBits[i]);
+    }
+
+    /**
+     * Calculates a hash of all the data the score distributions of the given measure depend on, i.e., items, terms,
+     * their relations, annotations and the relevant settings. Score distributions that are stored along with a
+     * different hash are stale.
+     *
+     * @param measure the name of the measure.
      * @return
      */
-    private int fingerprint()
+    private byte[] scoreDistributionHash(String measure)
     {
-        int fp = 0x3333;
-        for (int i = 0; i < this.allItemList.size(); i++) {
-            fp += this.allItemList.get(i).hashCode();
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         }
-        for (int i = 0; i < this.slimGraph.getNumberOfVertices(); i++) {
-            fp += this.slimGraph.getVertex(i).getID().id;
-            fp += this.slimGraph.getVertex(i).getName().hashCode();
+
+        try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+        }, md))) {
+            out.writeUTF(measure);
+
+            out.writeInt(this.allItemList.size());
+            for (int i = 0; i < this.allItemList.size(); i++) {
+                out.writeUTF(this.allItemList.get(i).toString());
+                out.writeInt(this.items2DirectTerms[i].length);
+                for (int j = 0; j < this.items2DirectTerms[i].length; j++) {
+                    out.writeInt(this.items2DirectTerms[i][j]);
+                    out.writeDouble(this.items2TermFrequencies[i][j]);
+                }
+            }
+
+            out.writeInt(this.slimGraph.getNumberOfVertices());
+            for (int i = 0; i < this.slimGraph.getNumberOfVertices(); i++) {
+                out.writeInt(this.slimGraph.getVertex(i).getID().id);
+                out.writeUTF(this.slimGraph.getVertex(i).getName());
+
+                /* Re-parenting terms changes the propagated annotations even if the terms stay the same */
+                int[] parents = this.slimGraph.vertexParents[i];
+                out.writeInt(parents.length);
+                for (int p : parents) {
+                    out.writeInt(p);
+                }
+            }
+
+            out.writeInt(this.SIZE_OF_SCORE_DISTRIBUTION);
+            out.writeInt(this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION);
+            out.writeBoolean(this.CONSIDER_FREQUENCIES_ONLY);
+            out.writeBoolean(this.FORBID_ILLEGAL_QUERIES);
+            out.writeBoolean(this.COMPACT_SCORE_DISTRIBUTION);
+            out.writeInt(this.NUMBER_OF_BINS_IN_APPROXIMATED_SCORE_DISTRIBUTION);
+            out.writeDouble(this.RELATIVE_ERROR_OF_COMPACT_SCORE_DISTRIBUTION);
+            out.writeLong(RANDOM_QUERIES_SEED);
+            out.writeInt(RANDOM_QUERIES_VERSION);
+            out.writeInt(QUERIES_PER_CHUNK);
+
+            /* The random scores are based on the item maxima, which are only approximated if precalculated */
+            out.writeBoolean(this.PRECALCULATE_ITEM_MAXS);
+            if (this.PRECALCULATE_ITEM_MAXS) {
+                out.writeUTF(this.ITEM_MAXS_PRECISION.name());
+                out.writeInt(ItemMaxScoreTable.VERSION);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        fp += new Random(this.SIZE_OF_SCORE_DISTRIBUTION).nextInt();
-        fp += new Random(this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION).nextInt();
-        return fp;
+
+        return md.digest();
+    }
+
+    /**
+     * Receives the progress of the setup.
+     *
+     * @author Sebastian Bauer
+     */
+    public static interface ISetupProgress
+    {
+        /**
+         * Called whenever a chunk of a setup step has been processed. Steps that don't depend on each other are
+         * processed concurrently, so this may be called from different threads at the same time.
+         *
+         * @param step the name of the step.
+         * @param done the number of elements of the step that have been processed so far.
+         * @param total the number of elements of the step.
+         */
+        public void progress(String step, int done, int total);
+    }
+
+    /**
+     * Sets the listener that receives the progress of the setup.
+     *
+     * @param progress the listener or null.
+     */
+    public void setSetupProgress(ISetupProgress progress)
+    {
+        this.setupProgress = progress;
+    }
+
+    /**
+     * Cancels a setup that is currently in progress, e.g., from a different thread. The setup then throws a
+     * CancellationException.
+     */
+    public void cancelSetup()
+    {
+        this.setupCancelled = true;
     }
 
     /**
@@ -1142,6 +1767,7 @@ public void setup(Ontology ontology, AssociationContainer associations)
     {
         this.assoc = associations;
         this.graph = ontology;
+        this.setupCancelled = false;
 
         // graph.findRedundantISARelations();
 
@@ -1150,100 +1776,355 @@ public void setup(Ontology ontology, AssociationContainer associations)
             this.micaMatrix = null;
         }
 
+        Set<ByteString> evidences = determineEvidenceFilter();
         HashSet<ByteString> itemsToBeConsidered = new HashSet<ByteString>(associations.getAllAnnotatedGenes());
-        provideGlobals(itemsToBeConsidered);
 
         /*
          * If we want to consider items with frequencies only, we like to shrink the item list to contain only the
-         * relevant items.
+         * relevant items. This is decided by a pre-scan of the associations so that the globals need to be built only
+         * once.
          */
         if (this.CONSIDER_FREQUENCIES_ONLY) {
-            int oldSize = this.allItemList.size();
+            int oldSize = 0;
 
+            HashSet<ByteString> itemsWithFrequencies = new HashSet<ByteString>();
+            for (ByteString item : itemsToBeConsidered) {
+                Gene2Associations g2a = associations.get(item);
+                if (g2a == null) {
+                    continue;
+                }
+                ItemFrequencyStatus status = determineItemFrequencyStatus(g2a, evidences);
+                if (status != ItemFrequencyStatus.UNANNOTATED) {
+                    oldSize++;
+                }
+                if (status == ItemFrequencyStatus.EXPLICIT) {
+                    itemsWithFrequencies.add(item);
+                }
+            }
+            if (itemsWithFrequencies.size() == 0) {
+                throw new RuntimeException("No items left after frequency filtering");
+            }
+            provideGlobals(itemsWithFrequencies, evidences);
+
+            /* Should never happen, but the pre-scan must not be less strict than provideGlobals() */
             itemsToBeConsidered = new HashSet<ByteString>();
             for (int i = 0; i < this.allItemList.size(); i++) {
                 if (this.itemHasFrequencies[i]) {
                     itemsToBeConsidered.add(this.allItemList.get(i));
                 }
             }
-            if (itemsToBeConsidered.size() == 0) {
-                throw new RuntimeException("No items left after frequency filtering");
+            if (itemsToBeConsidered.size() != this.allItemList.size()) {
+                logger.warn("Pre-scan of frequencies deviates, rebuilding globals");
+                provideGlobals(itemsToBeConsidered, evidences);
             }
-            provideGlobals(itemsToBeConsidered);
 
             System.out.println("There were " + oldSize + " items but we consider only " + this.allItemList.size()
                 + " of them with frequencies.");
             System.out.println("Considering " + this.slimGraph.getNumberOfVertices() + " terms");
+        } else {
+            provideGlobals(itemsToBeConsidered, evidences);
+        }
+
+        precalculate();
+
+        /* Choose appropriate values */
+        double numOfTerms = getSlimGraph().getNumberOfVertices();
+
+        this.ALPHA_GRID =
+            new double[] { 1e-10, 1 / numOfTerms, 2 / numOfTerms, 3 / numOfTerms, 4 / numOfTerms, 5 / numOfTerms,
+            6 / numOfTerms };
+        this.BETA_GRID = new double[] { 0.05, 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9, 0.95 };
+    }
+
+    /**
+     * Performs the precalculations that are enabled by the settings. The precalculations form a dependency graph that
+     * is executed on the fork-join pool: The Jaccard matrix is independent of the rest. The item maxs of a measure
+     * depend on the maxIC matrix, while the score distribution of a measure depends on the item maxs of the measure
+     * and on the random queries. Each precalculation partitions its rows across the threads of the pool.
+     */
+    private void precalculate()
+    {
+        final int numTerms = this.slimGraph.getNumberOfVertices();
+
+        AbstractTermSim[] termSims = new AbstractTermSim[] { this.resnikTermSim, this.linTermSim, this.jcTermSim };
+
+        /* Instantiates the query cache, which is shared by all measures */
+        if (this.CACHE_RANDOM_QUERIES) {
+            this.queryCache = new QuerySets(this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION + 1);
+            this.pendingQueries =
+                new AtomicReferenceArray<FutureTask<int[]>>(this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION + 1);
         }
 
-        /** Here we precalculate the jaccard similiartiy of two given terms in a dense matrix */
+        /** Here we precalculate the jaccard similiartiy of two given terms in a sparse matrix */
+        ForkJoinTask<?> jaccardStep = null;
         if (this.PRECALCULATE_JACCARD) {
-            logger.info("Calculating Jaccard");
-            double[][] newJaccardMatrix = new double[this.slimGraph.getNumberOfVertices()][];
-            for (int i = 0; i < this.slimGraph.getNumberOfVertices(); i++) {
-                newJaccardMatrix[i] = new double[this.slimGraph.getNumberOfVertices() - i - 1];
-                for (int j = i + 1; j < this.slimGraph.getNumberOfVertices(); j++) {
-                    newJaccardMatrix[i][j - i - 1] = jaccard(i, j);
+            final SparseJaccardMatrix newJaccardMatrix =
+                new SparseJaccardMatrix(this.term2Items, this.allItemList.size());
+            jaccardStep = setupStep("Jaccard", numTerms, 16, new IChunkProcessor()
+            {
+                @Override
+                public void process(int chunk, int from, int to)
+                {
+                    int[] counts = new int[numTerms];
+                    for (int i = from; i < to; i++) {
+                        newJaccardMatrix.calculateRow(i, counts);
+                    }
                 }
-            }
-            this.jaccardMatrix = newJaccardMatrix;
-            logger.info("Calculated Jaccard");
+            }, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    BOQA.this.jaccardMatrix = newJaccardMatrix;
+                    logger.info("Jaccard matrix contains {} term pairs", newJaccardMatrix.getNumberOfEntries());
+                }
+            });
         }
 
         /** Here we precalculate the maxICs of two given terms in a dense matrix */
+        ForkJoinTask<?> micaStep = null;
         if (this.PRECALCULATE_MAXICS) {
-            logger.info("Calculating max ICs");
-            int[][] newMaxICMatrix = new int[this.slimGraph.getNumberOfVertices()][];
-            for (int i = 0; i < this.slimGraph.getNumberOfVertices(); i++) {
-                newMaxICMatrix[i] = new int[this.slimGraph.getNumberOfVertices() - i - 1];
-                for (int j = i + 1; j < this.slimGraph.getNumberOfVertices(); j++) {
-                    newMaxICMatrix[i][j - i - 1] = commonAncestorWithMaxIC(i, j);
+            final int[][] newMaxICMatrix = new int[numTerms][];
+            micaStep = setupStep("max ICs", numTerms, 16, new IChunkProcessor()
+            {
+                @Override
+                public void process(int chunk, int from, int to)
+                {
+                    for (int i = from; i < to; i++) {
+                        newMaxICMatrix[i] = new int[numTerms - i - 1];
+                        for (int j = i + 1; j < numTerms; j++) {
+                            newMaxICMatrix[i][j - i - 1] = BOQA.this.micaCalculator.calculate(i, j);
+                        }
+                    }
+                }
+            }, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    BOQA.this.micaMatrix = newMaxICMatrix;
+                }
+            });
+        }
+
+        /** Random queries of all sizes are needed if any score distribution is precalculated */
+        ForkJoinTask<?> queriesStep = null;
+
+        ForkJoinTask<?>[] measureSteps = new ForkJoinTask<?>[termSims.length];
+        for (int k = 0; k < termSims.length; k++) {
+            final AbstractTermSim termSim = termSims[k];
+
+            /**
+             * Here we precalculate for each item the term which contributes as maximum ic term to the resnick
+             * calculation
+             */
+            ForkJoinTask<?> itemMaxsStep = null;
+            if (this.PRECALCULATE_ITEM_MAXS) {
+                final ItemMaxScoreTable table = newItemMaxScoreTable();
+                itemMaxsStep = setupStep("item maxs for " + termSim.name(), numTerms, 16, new IChunkProcessor()
+                {
+                    @Override
+                    public void process(int chunk, int from, int to)
+                    {
+                        double[] values = new double[BOQA.this.allItemList.size()];
+
+                        for (int term = from; term < to; term++) {
+                            for (int item = 0; item < values.length; item++) {
+                                double maxScore = Double.NEGATIVE_INFINITY;
+                                for (int t2 : BOQA.this.items2DirectTerms[item]) {
+                                    double score = termSim.termSim(term, t2);
+                                    if (score > maxScore) {
+                                        maxScore = score;
+                                    }
+                                }
+                                values[item] = maxScore;
+                            }
+                            table.setRow(term, values);
+                        }
+                    }
+                }, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        termSim.maxScoreForItem = table;
+                    }
+                });
+            }
+
+            ForkJoinTask<?> distributionStep = null;
+            if (termSim.setupDistribution()) {
+                distributionStep =
+                    setupStep("score distribution for " + termSim.name(), this.allItemList.size(), ITEMS_PER_CHUNK,
+                        new IChunkProcessor()
+                        {
+                            @Override
+                            public void process(int chunk, int from, int to)
+                            {
+                                for (int item = from; item < to; item++) {
+                                    for (int qs = 1; qs <= BOQA.this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION; qs++) {
+                                        termSim.getScoreDistribution(qs, item, getRandomizedQueries(qs));
+                                    }
+                                }
+                            }
+                        }, new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                termSim.storeDistribution();
+                            }
+                        });
+
+                if (queriesStep == null) {
+                    queriesStep = setupStep("random queries", this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION, 1,
+                        new IChunkProcessor()
+                        {
+                            @Override
+                            public void process(int chunk, int from, int to)
+                            {
+                                for (int qs = from + 1; qs <= to; qs++) {
+                                    getRandomizedQueries(qs);
+                                }
+                            }
+                        }, null);
                 }
             }
-            this.micaMatrix = newMaxICMatrix;
 
-            logger.info("Calculated max ICs");
+            measureSteps[k] = sequence(itemMaxsStep, distributionStep);
         }
 
-        /**
-         * Here we precalculate for each item the term which contributes as maximum ic term to the resnick calculation
-         */
-        if (this.PRECALCULATE_ITEM_MAXS) {
-            logger.info("Calculating item maxs");
-            this.resnikTermSim.maxScoreForItem =
-                new double[this.allItemList.size()][this.slimGraph.getNumberOfVertices()];
-            this.linTermSim.maxScoreForItem = new double[this.allItemList.size()][this.slimGraph.getNumberOfVertices()];
-            this.jcTermSim.maxScoreForItem = new double[this.allItemList.size()][this.slimGraph.getNumberOfVertices()];
+        invoke(parallel(jaccardStep, sequence(parallel(micaStep, queriesStep), parallel(measureSteps))));
+    }
 
-            for (int item = 0; item < this.allItemList.size(); item++) {
-                /* The fixed set */
-                int[] t2 = this.items2DirectTerms[item];
+    /**
+     * Creates a task for a single step of the setup. The given number of elements is processed in parallel chunks,
+     * after which the completion is run. Progress is reported to the setup progress listener, and the step is aborted
+     * with a CancellationException if the setup has been cancelled.
+     *
+     * @param name the name of the step.
+     * @param numElements the number of elements, e.g., rows, that are processed.
+     * @param chunkSize the number of consecutive elements that are processed by a single task.
+     * @param processor processes the elements.
+     * @param completion run after all elements have been processed, may be null.
+     * @return
+     */
+    private ForkJoinTask<?> setupStep(final String name, final int numElements, final int chunkSize,
+        final IChunkProcessor processor, final Runnable completion)
+    {
+        return new RecursiveAction()
+        {
+            private static final long serialVersionUID = 1L;
 
-                /* The set representing a single query term */
-                int[] t1 = new int[1];
+            @Override
+            protected void compute()
+            {
+                logger.info("Calculating {}", name);
 
-                for (int to = 0; to < this.slimGraph.getNumberOfVertices(); to++) {
-                    t1[0] = to;
-                    this.resnikTermSim.maxScoreForItem[item][to] = scoreMaxAvg(t1, t2, this.resnikTermSim);
-                    this.linTermSim.maxScoreForItem[item][to] = scoreMaxAvg(t1, t2, this.linTermSim);
-                    this.jcTermSim.maxScoreForItem[item][to] = scoreMaxAvg(t1, t2, this.jcTermSim);
+                final AtomicInteger done = new AtomicInteger();
+                processInParallel(numElements, chunkSize, new IChunkProcessor()
+                {
+                    @Override
+                    public void process(int chunk, int from, int to)
+                    {
+                        if (BOQA.this.setupCancelled) {
+                            throw new CancellationException("Setup has been cancelled");
+                        }
+
+                        processor.process(chunk, from, to);
+
+                        ISetupProgress progress = BOQA.this.setupProgress;
+                        int processed = done.addAndGet(to - from);
+                        if (progress != null) {
+                            progress.progress(name, processed, numElements);
+                        }
+                    }
+                });
+
+                if (completion != null) {
+                    completion.run();
                 }
+
+                logger.info("Calculated {}", name);
             }
+        };
+    }
 
-            logger.info("Calculated item maxs");
-        }
+    /**
+     * Creates a task that invokes the given tasks one after another. Null tasks are skipped.
+     *
+     * @param tasks
+     * @return
+     */
+    private static ForkJoinTask<?> sequence(final ForkJoinTask<?>... tasks)
+    {
+        return new RecursiveAction()
+        {
+            private static final long serialVersionUID = 1L;
 
-        this.resnikTermSim.setupDistribution();
-        this.linTermSim.setupDistribution();
-        this.jcTermSim.setupDistribution();
+            @Override
+            protected void compute()
+            {
+                for (ForkJoinTask<?> task : tasks) {
+                    if (task != null) {
+                        task.invoke();
+                    }
+                }
+            }
+        };
+    }
 
-        /* Choose appropriate values */
-        double numOfTerms = getSlimGraph().getNumberOfVertices();
+    /**
+     * Creates a task that invokes the given tasks in parallel. Null tasks are skipped.
+     *
+     * @param tasks
+     * @return
+     */
+    private static ForkJoinTask<?> parallel(final ForkJoinTask<?>... tasks)
+    {
+        return new RecursiveAction()
+        {
+            private static final long serialVersionUID = 1L;
 
-        this.ALPHA_GRID =
-            new double[] { 1e-10, 1 / numOfTerms, 2 / numOfTerms, 3 / numOfTerms, 4 / numOfTerms, 5 / numOfTerms,
-            6 / numOfTerms };
-        this.BETA_GRID = new double[] { 0.05, 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9, 0.95 };
+            @Override
+            protected void compute()
+            {
+                ArrayList<ForkJoinTask<?>> nonNullTasks = new ArrayList<ForkJoinTask<?>>();
+                for (ForkJoinTask<?> task : tasks) {
+                    if (task != null) {
+                        nonNullTasks.add(task);
+                    }
+                }
+                invokeAll(nonNullTasks);
+            }
+        };
+    }
+
+    /**
+     * Creates a new table for the precalculated item maxs according to the settings. Falls back to a table on the heap
+     * if the memory-mapped file couldn't be created.
+     *
+     * @return
+     */
+    private ItemMaxScoreTable newItemMaxScoreTable()
+    {
+        int numberOfTerms = this.slimGraph.getNumberOfVertices();
+        int numberOfItems = this.allItemList.size();
+
+        if (this.MAP_ITEM_MAXS) {
+            try {
+                return new ItemMaxScoreTable(numberOfTerms, numberOfItems, this.ITEM_MAXS_PRECISION, true);
+            } catch (IOException e) {
+                logger.warn("Failed to map item maxs, using heap: {}", e.getMessage(), e);
+            }
+        }
+
+        try {
+            return new ItemMaxScoreTable(numberOfTerms, numberOfItems, this.ITEM_MAXS_PRECISION, false);
+        } catch (IOException e) {
+            /* Cannot happen for tables on the heap */
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -1341,37 +2222,206 @@ public static int getNumProcessors()
     }
 
     /**
-     * Calculates the set difference of a minus b.
+     * Returns the pool that is used for fork-join based calculations. The pool is created on demand.
      *
-     * @param a
-     * @param b
      * @return
      */
-    private static int[] setDiff(int[] a, int[] b)
+    private synchronized ForkJoinPool getForkJoinPool()
     {
-        int[] c = new int[a.length];
-        int cc = 0; /* current c */
+        if (this.forkJoinPool == null) {
+            this.forkJoinPool = new ForkJoinPool(getNumProcessors());
+        }
+        return this.forkJoinPool;
+    }
 
-        /* Obviously, this could be optimized to linear time if a and b would be assumed to be sorted */
-        for (int element : a) {
-            boolean inB = false;
+    /**
+     * Invokes the given task. If we are already running within a fork-join pool, the task is executed within that
+     * pool, otherwise our own pool is used.
+     *
+     * @param task
+     */
+    private void invoke(ForkJoinTask<?> task)
+    {
+        if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            getForkJoinPool().invoke(task);
+        }
+    }
 
-            for (int element2 : b) {
-                if (element == element2) {
-                    inB = true;
-                    break;
+    /**
+     * Processes a chunk of consecutive elements, e.g., items.
+     *
+     * @author Sebastian Bauer
+     */
+    private static interface IChunkProcessor
+    {
+        /**
+         * Process the given chunk.
+         *
+         * @param chunk the index of the chunk.
+         * @param from the first element of the chunk.
+         * @param to the element following the last element of the chunk.
+         */
+        public void process(int chunk, int from, int to);
+    }
+
+    /**
+     * Task that divides a range of chunks until a single chunk is left, which is then processed.
+     *
+     * @author Sebastian Bauer
+     */
+    private static class ChunkTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final IChunkProcessor processor;
+
+        private final int firstChunk;
+
+        private final int lastChunk;
+
+        private final int chunkSize;
+
+        private final int numElements;
+
+        ChunkTask(IChunkProcessor processor, int firstChunk, int lastChunk, int chunkSize, int numElements)
+        {
+            this.processor = processor;
+            this.firstChunk = firstChunk;
+            this.lastChunk = lastChunk;
+            this.chunkSize = chunkSize;
+            this.numElements = numElements;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (this.lastChunk - this.firstChunk == 1) {
+                int from = this.firstChunk * this.chunkSize;
+                int to = Math.min(from + this.chunkSize, this.numElements);
+                this.processor.process(this.firstChunk, from, to);
+                return;
+            }
+
+            int middleChunk = (this.firstChunk + this.lastChunk) >>> 1;
+            invokeAll(new ChunkTask(this.processor, this.firstChunk, middleChunk, this.chunkSize, this.numElements),
+                new ChunkTask(this.processor, middleChunk, this.lastChunk, this.chunkSize, this.numElements));
+        }
+    }
+
+    /**
+     * Processes the given number of elements in parallel. The elements are partitioned into chunks of the given
+     * number of consecutive elements. The partition does not depend on the number of threads, so processors that
+     * derive e.g., random seeds from the chunk index behave deterministically.
+     *
+     * @param numElements
+     * @param chunkSize
+     * @param processor
+     */
+    private void processInParallel(int numElements, int chunkSize, IChunkProcessor processor)
+    {
+        int numChunks = (numElements + chunkSize - 1) / chunkSize;
+        if (numChunks > 0) {
+            invoke(new ChunkTask(processor, 0, numChunks, chunkSize, numElements));
+        }
+    }
+
+    /**
+     * Processes all items in parallel. The items are partitioned into chunks of consecutive items.
+     *
+     * @param processor
+     */
+    private void processItemsInParallel(IChunkProcessor processor)
+    {
+        processInParallel(this.allItemList.size(), ITEMS_PER_CHUNK, processor);
+    }
+
+    /**
+     * Waits for the completion of the given future and returns its result. Interruptions while waiting are deferred
+     * until the result is available. Exceptions thrown by the computation are rethrown.
+     * <p>
+     * The waiting is announced to the fork/join pool of the calling worker, if any, which may then activate another
+     * worker so that the parallelism of the pool is maintained while this one is blocked.
+     *
+     * @param future
+     * @return
+     */
+    private static <T> T getUninterruptibly(final Future<T> future)
+    {
+        boolean interrupted = false;
+
+        ForkJoinPool.ManagedBlocker blocker = new ForkJoinPool.ManagedBlocker()
+        {
+            @Override
+            public boolean block() throws InterruptedException
+            {
+                try {
+                    future.get();
+                } catch (ExecutionException | CancellationException e) {
+                    /* Rethrown below */
                 }
+                return true;
             }
 
-            if (!inB) {
-                c[cc++] = element;
+            @Override
+            public boolean isReleasable()
+            {
+                return future.isDone();
+            }
+        };
+
+        try {
+            while (true) {
+                try {
+                    ForkJoinPool.managedBlock(blocker);
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
         }
-        int[] nc = new int[cc];
-        for (int i = 0; i < cc; i++) {
-            nc[i] = c[i];
+    }
+
+    /**
+     * Calculates the set difference of the first aLength elements of a minus the first bLength elements of b by
+     * merging. Both ranges must be sorted.
+     *
+     * @param a
+     * @param aLength
+     * @param b
+     * @param bLength
+     * @param scratch used for intermediate results, must have space for aLength elements.
+     * @return the sorted difference.
+     */
+    private static int[] setDiff(int[] a, int aLength, int[] b, int bLength, int[] scratch)
+    {
+        int cc = 0; /* current c */
+        int j = 0;
+
+        for (int i = 0; i < aLength; i++) {
+            int element = a[i];
+            while (j < bLength && b[j] < element) {
+                j++;
+            }
+            if (j == bLength || b[j] != element) {
+                scratch[cc++] = element;
+            }
         }
-        return nc;
+        return Arrays.copyOf(scratch, cc);
     }
 
     /**
@@ -1437,15 +2487,12 @@ public int[] get()
     }
 
     /**
-     * Provides some global variables, given the global graph, the global associations and the items.
+     * Determines the evidence codes that should be considered.
      *
-     * @param allItemsToBeConsidered
+     * @return the evidence codes or null if all evidences should be considered.
      */
-    @SuppressWarnings("unused")
-    private void provideGlobals(Set<ByteString> allItemsToBeConsidered)
+    private Set<ByteString> determineEvidenceFilter()
     {
-        int i;
-
         /* list all evidence codes */
         HashMap<ByteString, Integer> evidences = new HashMap<ByteString, Integer>();
         for (Gene2Associations g2a : this.assoc) {
@@ -1465,7 +2512,6 @@ private void provideGlobals(Set<ByteString> allItemsToBeConsidered)
         }
 
         if (logger.isInfoEnabled()) {
-            logger.info(allItemsToBeConsidered.size() + " items shall be considered");
             StringBuilder builder = new StringBuilder("Available evidences: ");
             for (Entry<ByteString, Integer> ev : evidences.entrySet()) {
                 builder.append(ev.getKey().toString() + "->" + ev.getValue() + ",");
@@ -1486,15 +2532,159 @@ private void provideGlobals(Set<ByteString> allItemsToBeConsidered)
                 }
                 logger.info(builder.toString());
             }
-        } else {
-            /* Means take everything */
-            evidences = null;
+            return evidences.keySet();
+        }
+
+        /* Means take everything */
+        return null;
+
+    }
+
+    /**
+     * The frequency status of an item as determined by {@link BOQA#determineItemFrequencyStatus}.
+     */
+    private static enum ItemFrequencyStatus
+    {
+        /** The item has no annotation that is considered */
+        UNANNOTATED,
+
+        /** All considered annotations of the item have the default frequency */
+        IMPLICIT,
+
+        /** At least one considered annotation of the item has an explicit frequency below 1 */
+        EXPLICIT
+    }
+
+    /**
+     * Determines whether the given item has explicit frequencies by looking at its associations only. This uses the
+     * same rules as provideGlobals(), i.e., for each directly annotated term only the first association with an aspect
+     * determines the frequency, but doesn't require the term enumeration.
+     *
+     * @param g2a the associations of the item
+     * @param evidences the evidence codes to be considered or null if all evidences should be considered.
+     * @return the status
+     */
+    private ItemFrequencyStatus determineItemFrequencyStatus(Gene2Associations g2a, Set<ByteString> evidences)
+    {
+        ItemFrequencyStatus status = ItemFrequencyStatus.UNANNOTATED;
+        HashMap<TermID, ByteString> aspects = null;
+
+        for (Association a : g2a) {
+            if (evidences != null && (a.getEvidence() == null || !evidences.contains(a.getEvidence()))) {
+                continue;
+            }
+            Term t = this.graph.getTerm(a.getTermID());
+            if (t == null) {
+                continue;
+            }
+            status = ItemFrequencyStatus.IMPLICIT;
+
+            if (aspects == null) {
+                aspects = indexAspects(g2a);
+            }
+            if (this.frequencyParser.get(aspects.get(t.getID())) < 1.0) {
+                return ItemFrequencyStatus.EXPLICIT;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Maps the terms of the given associations to the aspect, i.e., the frequency string, of the first association
+     * that refers to the term and that has an aspect. We assume that the term appears only once.
+     *
+     * @param g2a
+     * @return
+     */
+    private static HashMap<TermID, ByteString> indexAspects(Gene2Associations g2a)
+    {
+        HashMap<TermID, ByteString> aspects = new HashMap<TermID, ByteString>();
+        for (Association a : g2a) {
+            if (a.getAspect() != null && !aspects.containsKey(a.getTermID())) {
+                aspects.put(a.getTermID(), a.getAspect());
+            }
+        }
+        return aspects;
+    }
+
+    /**
+     * Fills in the frequencies of the terms that are directly annotated to the given item and sorts them. Also
+     * determines whether the item has explicit frequencies.
+     *
+     * @param i the index of the item
+     */
+    private void determineFrequencies(int i)
+    {
+        /**
+         * A term and the corresponding frequency. We use this for sorting.
+         *
+         * @author Sebastian Bauer
+         */
+        class Freq implements Comparable<Freq>
+        {
+            public int termIdx;
+
+            public double freq;
+
+            @Override
+            public int compareTo(Freq o)
+            {
+                if (this.freq > o.freq) {
+                    return 1;
+                }
+                if (this.freq < o.freq) {
+                    return -1;
+                }
+                return 0;
+            }
+        }
+
+        this.items2TermFrequencies[i] = new double[this.items2DirectTerms[i].length];
+        this.item2TermFrequenciesOrder[i] = new int[this.items2DirectTerms[i].length];
+        Freq[] freqs = new Freq[this.items2DirectTerms[i].length];
+
+        ByteString item = this.allItemList.get(i);
+        HashMap<TermID, ByteString> aspects = indexAspects(this.assoc.get(item));
+
+        for (int j = 0; j < this.items2DirectTerms[i].length; j++) {
+            TermID tid = this.slimGraph.getVertex(this.items2DirectTerms[i][j]).getID();
+
+            /* Default frequency is 1.0 */
+            double f = this.frequencyParser.get(aspects.get(tid));
+
+            this.items2TermFrequencies[i][j] = f;
+            freqs[j] = new Freq();
+            freqs[j].termIdx = j;// items2DirectTerms[i][j];
+            freqs[j].freq = f;
+
+            if (f < 1.0) {
+                this.itemHasFrequencies[i] = true;
+            }
         }
 
+        /* Now sort and remember the indices */
+        Arrays.sort(freqs);
+        for (int j = 0; j < this.items2DirectTerms[i].length; j++) {
+            this.item2TermFrequenciesOrder[i][j] = freqs[j].termIdx;
+        }
+    }
+
+    /**
+     * Provides some global variables, given the global graph, the global associations and the items.
+     *
+     * @param allItemsToBeConsidered
+     * @param evidences the evidence codes to be considered or null if all evidences should be considered.
+     */
+    @SuppressWarnings("unused")
+    private void provideGlobals(Set<ByteString> allItemsToBeConsidered, Set<ByteString> evidences)
+    {
+        int i;
+
+        logger.info(allItemsToBeConsidered.size() + " items shall be considered");
+
         PopulationSet allItems = new PopulationSet("all");
         allItems.addGenes(allItemsToBeConsidered);
-        this.termEnumerator =
-            allItems.enumerateGOTerms(this.graph, this.assoc, evidences != null ? evidences.keySet() : null);
+        this.termEnumerator = allItems.enumerateGOTerms(this.graph, this.assoc, evidences);
         ItemEnumerator itemEnumerator = ItemEnumerator.createFromTermEnumerator(this.termEnumerator);
 
         /* Term stuff */
@@ -1515,6 +2705,25 @@ private void provideGlobals(Set<ByteString> allItemsToBeConsidered)
             this.termsToplogicalRank[this.termsInTopologicalOrder[i]] = i;
         }
 
+        /* Ancestors and descendants as bit vectors, allowing bulk activation and deactivation */
+        int numTerms = this.slimGraph.getNumberOfVertices();
+        this.term2AncestorBits = new long[numTerms][];
+        this.term2DescendantBits = new long[numTerms][];
+        this.allTermsBits = new long[Bits.words(numTerms)];
+        for (i = 0; i < numTerms; i++) {
+            this.term2AncestorBits[i] = new long[Bits.words(numTerms)];
+            for (int a : this.term2Ancestors[i]) {
+                Bits.set(this.term2AncestorBits[i], a);
+            }
+            Bits.set(this.term2AncestorBits[i], i);
+            this.term2DescendantBits[i] = new long[Bits.words(numTerms)];
+            for (int d : this.term2Descendants[i]) {
+                Bits.set(this.term2DescendantBits[i], d);
+            }
+            Bits.set(this.term2DescendantBits[i], i);
+            Bits.set(this.allTermsBits, i);
+        }
+
         /* Item stuff */
         this.allItemList = new ArrayList<ByteString>();
         this.item2Index = new HashMap<ByteString, Integer>();
@@ -1544,6 +2753,14 @@ private void provideGlobals(Set<ByteString> allItemsToBeConsidered)
             i++;
         }
 
+        this.items2TermBits = new long[this.allItemList.size()][];
+        for (i = 0; i < this.allItemList.size(); i++) {
+            this.items2TermBits[i] = new long[this.allTermsBits.length];
+            for (int t : this.items2Terms[i]) {
+                Bits.set(this.items2TermBits[i], t);
+            }
+        }
+
         /* Fill direct item matrix */
         this.items2DirectTerms = new int[this.allItemList.size()][];
         i = 0;
@@ -1577,93 +2794,45 @@ private void provideGlobals(Set<ByteString> allItemsToBeConsidered)
         this.items2TermFrequencies = new double[this.allItemList.size()][];
         this.itemHasFrequencies = new boolean[this.allItemList.size()];
         this.item2TermFrequenciesOrder = new int[this.allItemList.size()][];
-        for (i = 0; i < this.items2DirectTerms.length; i++) {
-            /**
-             * A term and the corresponding frequency. We use this for sorting.
-             *
-             * @author Sebastian Bauer
-             */
-            class Freq implements Comparable<Freq>
+        processItemsInParallel(new IChunkProcessor()
+        {
+            @Override
+            public void process(int chunk, int from, int to)
             {
-                public int termIdx;
-
-                public double freq;
-
-                @Override
-                public int compareTo(Freq o)
-                {
-                    if (this.freq > o.freq) {
-                        return 1;
-                    }
-                    if (this.freq < o.freq) {
-                        return -1;
-                    }
-                    return 0;
+                for (int i = from; i < to; i++) {
+                    determineFrequencies(i);
                 }
             }
+        });
 
-            this.items2TermFrequencies[i] = new double[this.items2DirectTerms[i].length];
-            this.item2TermFrequenciesOrder[i] = new int[this.items2DirectTerms[i].length];
-            Freq[] freqs = new Freq[this.items2DirectTerms[i].length];
-
-            ByteString item = this.allItemList.get(i);
-            Gene2Associations as = this.assoc.get(item);
-
-            // Disabled
-            // if (as.getAssociations().size() != items2DirectTerms[i].length)
-            // throw new IllegalArgumentException("Number of associations differs (" + as.getAssociations().size() +
-            // ") from the number of directly annotated terms (" + items2DirectTerms[i].length + ").");
-
-            for (int j = 0; j < this.items2DirectTerms[i].length; j++) {
-                boolean hasExlipictFrequency = false;
-
-                /* Default frequency */
-                double f = 1.0;
-
-                TermID tid = this.slimGraph.getVertex(this.items2DirectTerms[i][j]).getID();
-
-                /* Find frequency. We now have a O(n^3) algo. Will be optimized later */
-                for (Association a : as) {
-                    if (a.getTermID().equals(tid) && a.getAspect() != null) {
-                        f = getFrequencyFromString(a.getAspect().toString());
-                        if (f < 1.0) {
-                            hasExlipictFrequency = true;
-                        }
-                        /* We assume that the term appears only once */
-                        break;
-                    }
-                }
-
-                this.items2TermFrequencies[i][j] = f;
-                freqs[j] = new Freq();
-                freqs[j].termIdx = j;// items2DirectTerms[i][j];
-                freqs[j].freq = f;
+        createDiffVectors();
 
-                if (hasExlipictFrequency) {
-                    this.itemHasFrequencies[i] = true;
+        /* Determine the annotated items of each term */
+        this.term2Items = new ItemSet[this.slimGraph.getNumberOfVertices()];
+        for (i = 0; i < this.slimGraph.getNumberOfVertices(); i++) {
+            Term t = this.slimGraph.getVertex(i);
+            List<ByteString> annotated = this.termEnumerator.getAnnotatedGenes(t.getID()).totalAnnotated;
+            int[] items = new int[annotated.size()];
+            int numberOfItems = 0;
+            for (ByteString item : annotated) {
+                Integer itemIndex = this.item2Index.get(item);
+                if (itemIndex != null) {
+                    items[numberOfItems++] = itemIndex;
                 }
             }
-
-            /* Now sort and remember the indices */
-            Arrays.sort(freqs);
-            for (int j = 0; j < this.items2DirectTerms[i].length; j++) {
-                this.item2TermFrequenciesOrder[i][j] = freqs[j].termIdx;
-            }
+            items = Arrays.copyOf(items, numberOfItems);
+            Arrays.sort(items);
+            this.term2Items[i] = ItemSet.create(items, this.allItemList.size());
         }
 
-        createDiffVectors();
-
         /* Calculate IC */
         this.terms2IC = new double[this.slimGraph.getNumberOfVertices()];
         for (i = 0; i < this.slimGraph.getNumberOfVertices(); i++) {
-            Term t = this.slimGraph.getVertex(i);
-            this.terms2IC[i] =
-                -Math
-                    .log(((double) this.termEnumerator.getAnnotatedGenes(t.getID()).totalAnnotatedCount()
-                        / this.allItemList
-                            .size()));
+            this.terms2IC[i] = -Math.log(((double) this.term2Items[i].cardinality() / this.allItemList.size()));
         }
 
+        this.micaCalculator = new MicaCalculator(this.term2Ancestors, this.terms2IC, this.MICA_CACHE_SIZE);
+
         ArrayList<Integer> itemIndices = new ArrayList<Integer>();
         for (int o = 0; o < this.allItemList.size(); o++) {
             itemIndices.add(o);
@@ -1692,109 +2861,145 @@ public double distance(Integer ai, Integer bi)
      */
     private void createDiffVectors()
     {
-        int i;
+        final int numItems = this.allItemList.size();
 
-        long sum = 0;
-        /* Fill diff matrix */
-        this.diffOnTerms = new int[this.allItemList.size()][];
-        this.diffOffTerms = new int[this.allItemList.size()][];
-        this.diffOnTerms[0] = this.items2Terms[0]; /* For the first step, all terms must be activated */
-        this.diffOffTerms[0] = new int[0];
-        for (i = 1; i < this.allItemList.size(); i++) {
-            int prevOnTerms[] = this.items2Terms[i - 1];
-            int newOnTerms[] = this.items2Terms[i];
+        this.diffOnTerms = new int[numItems][];
+        this.diffOffTerms = new int[numItems][];
+        this.diffOnTermsFreqs = new int[numItems][][];
+        this.diffOffTermsFreqs = new int[numItems][][];
+        this.factors = new double[numItems][];
 
-            this.diffOnTerms[i] = setDiff(newOnTerms, prevOnTerms);
-            this.diffOffTerms[i] = setDiff(prevOnTerms, newOnTerms);
+        /* Items are independent of each other, each chunk has its own scratch buffers */
+        processItemsInParallel(new IChunkProcessor()
+        {
+            @Override
+            public void process(int chunk, int from, int to)
+            {
+                int numberOfTerms = BOQA.this.slimGraph.getNumberOfVertices();
+                long[] hidden = new long[BOQA.this.allTermsBits.length];
+                int[] previous = new int[numberOfTerms];
+                int[] current = new int[numberOfTerms];
+                int[] scratch = new int[numberOfTerms];
+
+                for (int item = from; item < to; item++) {
+                    createDiffVectors(item, hidden, previous, current, scratch);
+                }
+            }
+        });
 
+        long sum = 0;
+        for (int i = 1; i < numItems; i++) {
             sum += this.diffOnTerms[i].length + this.diffOffTerms[i].length;
         }
-        logger.info(sum + " differences detected (" + (double) sum / this.allItemList.size() + " per item)");
+        logger.info(sum + " differences detected (" + (double) sum / numItems + " per item)");
+    }
 
-        this.diffOnTermsFreqs = new int[this.allItemList.size()][][];
-        this.diffOffTermsFreqs = new int[this.allItemList.size()][][];
-        this.factors = new double[this.allItemList.size()][];
-        for (int item = 0; item < this.allItemList.size(); item++) {
-            int numTerms = this.items2TermFrequencies[item].length;
-            int numTermsWithExplicitFrequencies = 0;
-            int numConfigs = 0;
+    /**
+     * Creates the diff vectors of the given item.
+     *
+     * @param item
+     * @param hidden scratch space for the hidden states as bit vector.
+     * @param previous scratch space with an element for each term.
+     * @param current scratch space with an element for each term.
+     * @param scratch scratch space with an element for each term.
+     */
+    private void createDiffVectors(int item, long[] hidden, int[] previous, int[] current, int[] scratch)
+    {
+        int i;
 
-            /*
-             * Determine the number of terms that have non-1.0 frequency. We restrict them to the top 6 (the less
-             * probable) due to complexity issues and hope that this a good enough approximation.
-             */
-            for (i = 0; i < numTerms && i < this.maxFrequencyTerms; i++) {
-                if (this.items2TermFrequencies[item][this.item2TermFrequenciesOrder[item][i]] >= 1.0) {
-                    break;
-                }
-                numTermsWithExplicitFrequencies++;
-            }
+        /* Fill diff matrix */
+        if (item == 0) {
+            this.diffOnTerms[0] = this.items2Terms[0]; /* For the first step, all terms must be activated */
+            this.diffOffTerms[0] = new int[0];
+        } else {
+            int prevOnTerms[] = this.items2Terms[item - 1];
+            int newOnTerms[] = this.items2Terms[item];
+
+            this.diffOnTerms[item] = setDiff(newOnTerms, newOnTerms.length, prevOnTerms, prevOnTerms.length, scratch);
+            this.diffOffTerms[item] = setDiff(prevOnTerms, prevOnTerms.length, newOnTerms, newOnTerms.length, scratch);
+        }
 
-            /* We try each possible activity/inactivity combination of terms with explicit frequencies */
-            SubsetGenerator sg = new SubsetGenerator(numTermsWithExplicitFrequencies, numTermsWithExplicitFrequencies);
-            SubsetGenerator.Subset s;
+        int numTerms = this.items2TermFrequencies[item].length;
+        int numTermsWithExplicitFrequencies = 0;
+        int numConfigs = 0;
 
-            /* First, determine the number of configs (could calculate binomial coefficient of course) */
-            while ((s = sg.next()) != null) {
-                numConfigs++;
+        /*
+         * Determine the number of terms that have non-1.0 frequency. We restrict them to the top 6 (the less probable)
+         * due to complexity issues and hope that this a good enough approximation.
+         */
+        for (i = 0; i < numTerms && i < this.maxFrequencyTerms; i++) {
+            if (this.items2TermFrequencies[item][this.item2TermFrequenciesOrder[item][i]] >= 1.0) {
+                break;
             }
+            numTermsWithExplicitFrequencies++;
+        }
 
-            this.diffOnTermsFreqs[item] = new int[numConfigs][];
-            this.diffOffTermsFreqs[item] = new int[numConfigs][];
-            this.factors[item] = new double[numConfigs];
+        /* We try each possible activity/inactivity combination of terms with explicit frequencies */
+        SubsetGenerator sg = new SubsetGenerator(numTermsWithExplicitFrequencies, numTermsWithExplicitFrequencies);
+        SubsetGenerator.Subset s;
 
-            /* Contains the settings of the previous run */
-            IntArray prevArray = new IntArray(this.slimGraph.getNumberOfVertices());
+        /* First, determine the number of configs (could calculate binomial coefficient of course) */
+        while ((s = sg.next()) != null) {
+            numConfigs++;
+        }
 
-            int config = 0;
+        this.diffOnTermsFreqs[item] = new int[numConfigs][];
+        this.diffOffTermsFreqs[item] = new int[numConfigs][];
+        this.factors[item] = new double[numConfigs];
 
-            while ((s = sg.next()) != null) {
-                boolean[] hidden = new boolean[this.slimGraph.getNumberOfVertices()];
-                boolean[] taken = new boolean[numTermsWithExplicitFrequencies];
+        /* Contains the settings of the previous run */
+        int numPrevious = 0;
 
-                double factor = 0.0;
+        boolean[] taken = new boolean[numTermsWithExplicitFrequencies];
 
-                /* First, activate variable terms according to the current selection */
-                for (i = 0; i < s.r; i++) {
-                    int ti = this.item2TermFrequenciesOrder[item][s.j[i]]; /*
-                                                                            * index of term within the all directly
-                                                                            * associated indices
-                                                                            */
-                    int h = this.items2DirectTerms[item][ti]; /* global index of term */
-                    hidden[h] = true;
-                    activateAncestors(h, hidden);
-                    factor += Math.log(this.items2TermFrequencies[item][ti]);
-                    taken[s.j[i]] = true;
-                }
+        int config = 0;
 
-                /* Needs also respect the inactive terms in the factor */
-                for (i = 0; i < numTermsWithExplicitFrequencies; i++) {
-                    if (!taken[i]) {
-                        factor +=
-                            Math.log(1 - this.items2TermFrequencies[item][this.item2TermFrequenciesOrder[item][i]]);
-                    }
-                }
+        while ((s = sg.next()) != null) {
+            Arrays.fill(hidden, 0);
+            Arrays.fill(taken, false);
 
-                /* Second, activate mandatory terms */
-                for (i = numTermsWithExplicitFrequencies; i < numTerms; i++) {
-                    int ti = this.item2TermFrequenciesOrder[item][i];
-                    int h = this.items2DirectTerms[item][ti]; /* global index of term */
-                    hidden[h] = true;
-                    activateAncestors(h, hidden);
-                    /* Factor is always 0 */
-                }
+            double factor = 0.0;
 
-                /* Now make a sparse representation */
-                IntArray newArray = new IntArray(hidden);
+            /* First, activate variable terms according to the current selection */
+            for (i = 0; i < s.r; i++) {
+                int ti = this.item2TermFrequenciesOrder[item][s.j[i]]; /*
+                                                                        * index of term within the all directly
+                                                                        * associated indices
+                                                                        */
+                int h = this.items2DirectTerms[item][ti]; /* global index of term */
+                activateAncestors(h, hidden);
+                factor += Math.log(this.items2TermFrequencies[item][ti]);
+                taken[s.j[i]] = true;
+            }
 
-                /* And record the difference */
-                this.diffOnTermsFreqs[item][config] = setDiff(newArray.get(), prevArray.get());
-                this.diffOffTermsFreqs[item][config] = setDiff(prevArray.get(), newArray.get());
-                this.factors[item][config] = factor;
+            /* Needs also respect the inactive terms in the factor */
+            for (i = 0; i < numTermsWithExplicitFrequencies; i++) {
+                if (!taken[i]) {
+                    factor += Math.log(1 - this.items2TermFrequencies[item][this.item2TermFrequenciesOrder[item][i]]);
+                }
+            }
 
-                prevArray = newArray;
-                config++;
+            /* Second, activate mandatory terms */
+            for (i = numTermsWithExplicitFrequencies; i < numTerms; i++) {
+                int ti = this.item2TermFrequenciesOrder[item][i];
+                int h = this.items2DirectTerms[item][ti]; /* global index of term */
+                activateAncestors(h, hidden);
+                /* Factor is always 0 */
             }
+
+            /* Now make a sparse representation */
+            int numCurrent = Bits.toIndices(hidden, current);
+
+            /* And record the difference */
+            this.diffOnTermsFreqs[item][config] = setDiff(current, numCurrent, previous, numPrevious, scratch);
+            this.diffOffTermsFreqs[item][config] = setDiff(previous, numPrevious, current, numCurrent, scratch);
+            this.factors[item][config] = factor;
+
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+            numPrevious = numCurrent;
+            config++;
         }
     }
 
@@ -1806,8 +3011,7 @@ private void createDiffVectors()
      */
     public int getNumberOfItemsAnnotatedToTerm(int i)
     {
-        Term t = this.slimGraph.getVertex(i);
-        return this.termEnumerator.getAnnotatedGenes(t.getID()).totalAnnotatedCount();
+        return this.term2Items[i].cardinality();
     }
 
     /**
@@ -1821,60 +3025,6 @@ public double getIC(int i)
         return this.terms2IC[i];
     }
 
-    /**
-     * Converts the frequency string to a double value.
-     *
-     * @param freq
-     * @return
-     */
-    private double getFrequencyFromString(String freq)
-    {
-        double f = 1.0;
-
-        if (freq == null || freq.length() == 0) {
-            return 1.0;
-        }
-
-        Matcher matcher = frequencyPattern.matcher(freq);
-        if (matcher.matches()) {
-            String fractionalPart = matcher.group(2);
-            if (fractionalPart == null || fractionalPart.length() == 0) {
-                fractionalPart = "0";
-            }
-
-            f =
-                Double.parseDouble(matcher.group(1)) + Double.parseDouble(fractionalPart)
-                    / Math.pow(10, fractionalPart.length());
-            f /= 100.0;
-        } else {
-            matcher = frequencyFractionPattern.matcher(freq);
-            if (matcher.matches()) {
-                f = Double.parseDouble(matcher.group(1)) / Double.parseDouble(matcher.group(2));
-            } else {
-                if (freq.equalsIgnoreCase("very rare")) {
-                    f = 0.01;
-                } else if (freq.equalsIgnoreCase("rare")) {
-                    f = 0.05;
-                } else if (freq.equalsIgnoreCase("occasional")) {
-                    f = 0.075;
-                } else if (freq.equalsIgnoreCase("frequent")) {
-                    f = 0.33;
-                } else if (freq.equalsIgnoreCase("typical")) {
-                    f = 0.50;
-                } else if (freq.equalsIgnoreCase("common")) {
-                    f = 0.75;
-                } else if (freq.equalsIgnoreCase("hallmark")) {
-                    f = 0.90;
-                } else if (freq.equalsIgnoreCase("obligate")) {
-                    f = 1;
-                } else {
-                    logger.info("Unknown frequency identifier: {}", freq);
-                }
-            }
-        }
-        return f;
-    }
-
     /**
      * This is a container for the results of the class.
      *
@@ -1890,6 +3040,9 @@ private double getFrequencyFromString(String freq)
 
         private double[] scores;
 
+        /** Contains the number of random scores the p value (marginal) of each item is based on */
+        private int[] draws;
+
         /** Some statistics for each item (number of false-positives, etc. ) */
         Configuration[] stats;
 
@@ -1925,6 +3078,22 @@ public Configuration getStats(int i)
             return this.stats[i];
         }
 
+        /**
+         * Returns the number of random scores the p value of the given item is based on. Only available for results
+         * of the semantic similarity measures for which a p value has been determined.
+         *
+         * @param i
+         * @return the number of draws or 0 if the result has no p values, e.g., if it has been determined by
+         *         assignMarginals() or mbScore().
+         */
+        public int getDraws(int i)
+        {
+            if (this.draws == null) {
+                return 0;
+            }
+            return this.draws[i];
+        }
+
         public int size()
         {
             return this.marginals.length;
@@ -1979,9 +3148,19 @@ public Result assignMarginals(final Observations observations, final boolean tak
             es = null;
         }
 
-        final boolean[] previousHidden = new boolean[this.slimGraph.getNumberOfVertices()];
-        final Configuration previousStat = new Configuration();
-        determineCases(observations.observations, previousHidden, previousStat);
+        final boolean[] previousHidden;
+        final Configuration previousStat;
+        final ObservedCases observedCases;
+        if (this.POPCOUNT_SCORING) {
+            previousHidden = null;
+            previousStat = null;
+            observedCases = determineObservedCases(Bits.fromBooleans(observations.observations));
+        } else {
+            previousHidden = new boolean[this.slimGraph.getNumberOfVertices()];
+            previousStat = new Configuration();
+            observedCases = null;
+            determineCases(observations.observations, previousHidden, previousStat);
+        }
 
         ArrayList<Future<?>> futureList = new ArrayList<Future<?>>();
 
@@ -1995,9 +3174,14 @@ public Result assignMarginals(final Observations observations, final boolean tak
                 @Override
                 public void run()
                 {
-                    WeightedConfigurationList stats =
-                        determineCasesForItem(item, observations.observations, takeFrequenciesIntoAccount,
-                            numThreads > 1 ? null : previousHidden, numThreads > 1 ? null : previousStat);
+                    WeightedConfigurationList stats;
+                    if (observedCases != null) {
+                        stats = determineCasesForItemDirectly(item, observedCases, takeFrequenciesIntoAccount);
+                    } else {
+                        stats =
+                            determineCasesForItem(item, observations.observations, takeFrequenciesIntoAccount,
+                                numThreads > 1 ? null : previousHidden, numThreads > 1 ? null : previousStat);
+                    }
 
                     for (int a = 0; a < BOQA.this.ALPHA_GRID.length; a++) {
                         for (int b = 0; b < BOQA.this.BETA_GRID.length; b++) {
@@ -2117,35 +3301,7 @@ private int commonAncestorWithMaxIC(int t1, int t2)
             }
         }
 
-        /* A rather slow implementation */
-        int[] ancestorsA;
-        int[] ancestorsB;
-
-        if (this.term2Ancestors[t1].length > this.term2Ancestors[t2].length) {
-            ancestorsA = this.term2Ancestors[t1];
-            ancestorsB = this.term2Ancestors[t2];
-        } else {
-            ancestorsA = this.term2Ancestors[t1];
-            ancestorsB = this.term2Ancestors[t2];
-        }
-
-        int bestTerm = -1;
-        double bestIC = Double.NEGATIVE_INFINITY;
-
-        for (int term : ancestorsA) {
-            for (int element : ancestorsB) {
-                if (term == element) {
-                    double ic = this.terms2IC[term];
-
-                    if (ic > bestIC) {
-                        bestIC = ic;
-                        bestTerm = term;
-                    }
-                    break;
-                }
-            }
-        }
-
+        int bestTerm = this.micaCalculator.get(t1, t2);
         if (bestTerm == -1) {
             throw new RuntimeException("No best term found, which is strange.");
         }
@@ -2167,53 +3323,64 @@ public double jaccard(int t1, int t2)
         }
 
         if (this.jaccardMatrix != null) {
-            if (t1 < t2) {
-                return this.jaccardMatrix[t1][t2 - t1 - 1];
-            } else {
-                return this.jaccardMatrix[t2][t1 - t2 - 1];
-            }
+            return this.jaccardMatrix.get(t1, t2);
         }
 
-        Term tt1 = this.slimGraph.getVertex(t1);
-        Term tt2 = this.slimGraph.getVertex(t2);
-        HashSet<ByteString> tt1a =
-            new HashSet<ByteString>(this.termEnumerator.getAnnotatedGenes(tt1.getID()).totalAnnotated);
-        HashSet<ByteString> tt2a =
-            new HashSet<ByteString>(this.termEnumerator.getAnnotatedGenes(tt2.getID()).totalAnnotated);
-        HashSet<ByteString> union = new HashSet<ByteString>(tt1a);
-        union.addAll(tt2a);
-
-        tt1a.retainAll(tt2a);
+        ItemSet items1 = this.term2Items[t1];
+        ItemSet items2 = this.term2Items[t2];
+        int intersection = items1.intersectionSize(items2);
 
-        return (double) tt1a.size() / union.size();
+        return (double) intersection / (items1.cardinality() + items2.cardinality() - intersection);
     }
 
     /**
      * Returns a minimal length array of terms of which the induced graph is the same as of the given terms. These are
-     * the leaf terms.
+     * the leaf terms, i.e., the given terms that are not an ancestor of any other given term. The terms are returned
+     * in ascending order.
      *
      * @param terms
      * @return
      */
     public int[] mostSpecificTerms(int[] terms)
     {
-        ArrayList<TermID> termList = new ArrayList<TermID>(terms.length);
-        for (int term : terms) {
-            termList.add(this.slimGraph.getVertex(term).getID());
+        int words = Bits.words(this.slimGraph.getNumberOfVertices());
+        long[][] scratch = this.mostSpecificTermsScratch.get();
+        if (scratch == null || scratch[0].length != words) {
+            scratch = new long[2][words];
+            this.mostSpecificTermsScratch.set(scratch);
         }
 
-        Ontology termGraph = this.graph.getInducedGraph(termList);
-
-        ArrayList<Term> leafTermList = termGraph.getLeafTerms();
+        /* All terms that are a proper ancestor of one of the given terms */
+        long[] covered = scratch[0];
+        long[] emitted = scratch[1];
 
-        int[] specifcTerms = new int[leafTermList.size()];
-        int i = 0;
+        for (int term : terms) {
+            for (int parent : this.term2Parents[term]) {
+                if (!Bits.get(covered, parent)) {
+                    Bits.or(covered, this.term2AncestorBits[parent]);
+                }
+            }
+        }
 
-        for (Term t : termGraph.getLeafTerms()) {
-            specifcTerms[i++] = this.slimGraph.getVertexIndex(t);
+        int numberOfSpecificTerms = 0;
+        for (int term : terms) {
+            if (!Bits.get(covered, term) && !Bits.get(emitted, term)) {
+                Bits.set(emitted, term);
+                numberOfSpecificTerms++;
+            }
         }
 
-        return specifcTerms;
+        int[] specificTerms = new int[numberOfSpecificTerms];
+        int i = 0;
+        for (int term : terms) {
+            if (Bits.get(emitted, term)) {
+                Bits.clear(emitted, term);
+                specificTerms[i++] = term;
+            }
+        }
+        Arrays.fill(covered, 0);
+        Arrays.sort(specificTerms);
+        return specificTerms;
     }
 
     /**
@@ -2263,187 +3430,188 @@ private int[] getMostSpecificTermsSparse(boolean[] observations)
      */
     public abstract class AbstractTermSim implements ITermSim
     {
-        /** Contains for each item the maximal score for the given term */
-        public double[][] maxScoreForItem;
+        /** Contains for each term and each item the maximal score of the term and the terms of the item */
+        public ItemMaxScoreTable maxScoreForItem;
 
         /** Stores the score distribution */
         private ApproximatedEmpiricalDistributions scoreDistributions;
 
-        /** Lock for the score distribution */
-        private ReentrantReadWriteLock scoreDistributionLock = new ReentrantReadWriteLock();
+        /**
+         * Contains for each slot of the score distribution the computation that is currently in progress. A slot is
+         * cleared as soon as the computed distribution has been stored.
+         */
+        private AtomicReferenceArray<FutureTask<IDistribution>> pendingScoreDistributions;
 
         /**
          * Returns the score distribution for the given item for the given query size. If the score distribution has not
-         * been created yet, create it using the supplied queries.
+         * been created yet, create it using the supplied queries. Each distribution is computed only once, threads that
+         * ask for a distribution that is currently computed by another thread wait for its completion.
          *
          * @param querySize
          * @param item
          * @param queries
          * @return
          */
-        private ApproximatedEmpiricalDistribution getScoreDistribution(int querySize, int item, int[][] queries)
+        private IDistribution getScoreDistribution(final int querySize, final int item,
+            final int[] queries)
         {
-            this.scoreDistributionLock.readLock().lock();
-            ApproximatedEmpiricalDistribution d =
-                this.scoreDistributions.getDistribution(item * (BOQA.this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION + 1)
-                    + querySize);
-            this.scoreDistributionLock.readLock().unlock();
-
-            if (d == null) {
-                /* Determine score distribution */
-                double[] scores = new double[BOQA.this.SIZE_OF_SCORE_DISTRIBUTION];
-                double maxScore = Double.NEGATIVE_INFINITY;
-
-                for (int j = 0; j < BOQA.this.SIZE_OF_SCORE_DISTRIBUTION; j++) {
-                    scores[j] = scoreVsItem(queries[j], item, this);
-                    if (scores[j] > maxScore) {
-                        maxScore = scores[j];
+            int slot = item * (BOQA.this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION + 1) + querySize;
+
+            IDistribution d = this.scoreDistributions.getDistribution(slot);
+            if (d != null) {
+                return d;
+            }
+
+            FutureTask<IDistribution> task =
+                new FutureTask<IDistribution>(new Callable<IDistribution>()
+                {
+                    @Override
+                    public IDistribution call()
+                    {
+                        return createScoreDistribution(querySize, item, queries);
+                    }
+                });
+
+            while (true) {
+                if (this.pendingScoreDistributions.compareAndSet(slot, null, task)) {
+                    /* We are responsible for the computation, but another thread may have finished it meanwhile */
+                    try {
+                        d = this.scoreDistributions.getDistribution(slot);
+                        if (d == null) {
+                            task.run();
+                            d = getUninterruptibly(task);
+                            this.scoreDistributions.setDistribution(slot, d);
+                        }
+                    } finally {
+                        /* Also on failure, so that later callers retry rather than seeing the failed task */
+                        this.pendingScoreDistributions.compareAndSet(slot, task, null);
                     }
+                    return d;
                 }
 
-                ApproximatedEmpiricalDistribution d2 =
-                    new ApproximatedEmpiricalDistribution(scores,
-                        BOQA.this.NUMBER_OF_BINS_IN_APPROXIMATED_SCORE_DISTRIBUTION);
+                FutureTask<IDistribution> pending = this.pendingScoreDistributions.get(slot);
+                if (pending != null) {
+                    return getUninterruptibly(pending);
+                }
 
-                this.scoreDistributionLock.writeLock().lock();
-                d =
-                    this.scoreDistributions.getDistribution(item
-                        * (BOQA.this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION + 1) + querySize);
-                if (d == null) {
-                    this.scoreDistributions.setDistribution(item
-                        * (BOQA.this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION + 1) + querySize,
-                        d2);
+                /* The pending computation has been finished just now */
+                d = this.scoreDistributions.getDistribution(slot);
+                if (d != null) {
+                    return d;
                 }
-                this.scoreDistributionLock.writeLock().unlock();
             }
-
-            return d;
         }
 
         /**
-         * Sets up the score distribution. At the moment, this must be called before maxScoreForItem is setup.
+         * Creates the score distribution for the given item for the given query size using the supplied queries.
+         *
+         * @param querySize
+         * @param item
+         * @param queries
+         * @return
          */
-        public void setupDistribution()
+        private IDistribution createScoreDistribution(int querySize, int item, int[] queries)
         {
-            /** Instantiates the query cache */
-            if (BOQA.this.CACHE_RANDOM_QUERIES) {
-                boolean distributionLoaded = false;
-                String scoreDistributionsName =
-                    "scoreDistributions-" + name() + "-" + BOQA.this.allItemList.size() + "-"
-                        + BOQA.this.CONSIDER_FREQUENCIES_ONLY + "-"
-                        + BOQA.this.SIZE_OF_SCORE_DISTRIBUTION + ".gz";
-
-                BOQA.this.queryCache = new QuerySets(BOQA.this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION + 1);
-
-                if ((BOQA.this.CACHE_SCORE_DISTRIBUTION || BOQA.this.PRECALCULATE_SCORE_DISTRIBUTION)
-                    && BOQA.this.TRY_LOADING_SCORE_DISTRIBUTION) {
-                    File inFile = new File(scoreDistributionsName);
-                    try (InputStream underlyingStream = new GZIPInputStream(new FileInputStream(inFile));
-                        ObjectInputStream ois = new ObjectInputStream(underlyingStream)) {
-
-                        int fingerprint = ois.readInt();
-                        if (fingerprint == fingerprint()) {
-                            this.scoreDistributions = (ApproximatedEmpiricalDistributions) ois.readObject();
-                            distributionLoaded = true;
-                            logger.info("Score distribution loaded from \"{}\"", inFile.getAbsolutePath());
-                        }
-                    } catch (FileNotFoundException e) {
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    } catch (ClassNotFoundException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                if (BOQA.this.PRECALCULATE_SCORE_DISTRIBUTION) {
-                    if (!distributionLoaded) {
-                        this.scoreDistributions =
-                            new ApproximatedEmpiricalDistributions(BOQA.this.allItemList.size()
-                                * (BOQA.this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION + 1));
-                    }
-
-                    logger.info("Precaculating score distribution for {}", name());
-
-                    Random rnd = new Random(9);
-                    ExecutorService es = null;
-                    ArrayList<Future<?>> futureList = new ArrayList<Future<?>>();
-
-                    if (getNumProcessors() > 1) {
-                        es = Executors.newFixedThreadPool(getNumProcessors());
-                    } else {
-                        es = null;
-                    }
+            double[] scores = new double[BOQA.this.SIZE_OF_SCORE_DISTRIBUTION];
 
-                    for (int i = 0; i < BOQA.this.allItemList.size(); i++) {
-                        final long seed = rnd.nextLong();
-                        final int item = i;
+            for (int j = 0; j < BOQA.this.SIZE_OF_SCORE_DISTRIBUTION; j++) {
+                scores[j] = scoreQueryVsItem(queries, querySize, j, item, this);
+            }
 
-                        Runnable run = new Runnable()
-                        {
-                            @Override
-                            public void run()
-                            {
-                                Random rnd = new Random(seed);
+            if (BOQA.this.COMPACT_SCORE_DISTRIBUTION) {
+                return new CompactEmpiricalDistribution(scores,
+                    BOQA.this.RELATIVE_ERROR_OF_COMPACT_SCORE_DISTRIBUTION);
+            }
+            return new ApproximatedEmpiricalDistribution(scores,
+                BOQA.this.NUMBER_OF_BINS_IN_APPROXIMATED_SCORE_DISTRIBUTION);
+        }
 
-                                for (int qs = 1; qs <= BOQA.this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION; qs++) {
-                                    int[][] queries = getRandomizedQueries(rnd, qs);
-                                    getScoreDistribution(qs, item, queries);
-                                }
-                            }
-                        };
+        /**
+         * Returns the file in which the score distributions of this measure are stored.
+         *
+         * @return
+         */
+        private File scoreDistributionsFile()
+        {
+            return new File("scoreDistributions-" + name() + "-" + BOQA.this.allItemList.size() + "-"
+                + BOQA.this.CONSIDER_FREQUENCIES_ONLY + "-" + BOQA.this.SIZE_OF_SCORE_DISTRIBUTION
+                + (BOQA.this.COMPACT_SCORE_DISTRIBUTION ? "-compact" : "") + ".bin");
+        }
 
-                        if (es != null) {
-                            futureList.add(es.submit(run));
-                        } else {
-                            run.run();
-                        }
-                    }
+        /**
+         * Returns the number of slots for score distributions, i.e., the number of items times the number of cached
+         * query sizes.
+         *
+         * @return
+         */
+        private int numberOfScoreDistributionSlots()
+        {
+            return BOQA.this.allItemList.size() * (BOQA.this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION + 1);
+        }
 
-                    /* Cleanup */
-                    if (es != null) {
-                        es.shutdown();
+        /**
+         * Sets up the containers for the score distribution and maps a stored score distribution if possible. The
+         * query cache must have been instantiated before.
+         *
+         * @return whether the score distribution still needs to be precalculated.
+         */
+        public boolean setupDistribution()
+        {
+            if (!BOQA.this.CACHE_RANDOM_QUERIES) {
+                return false;
+            }
 
-                        for (Future<?> f : futureList) {
-                            try {
-                                f.get();
-                            } catch (Exception e) {
-                                throw new RuntimeException(e);
-                            }
-                        }
+            boolean distributionLoaded = false;
+            int numberOfSlots = numberOfScoreDistributionSlots();
+            File scoreDistributionsFile = scoreDistributionsFile();
 
-                        try {
-                            while (!es.awaitTermination(10, TimeUnit.SECONDS)) {
-                                ;
-                            }
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                            throw new RuntimeException(e);
-                        }
+            if ((BOQA.this.CACHE_SCORE_DISTRIBUTION || BOQA.this.PRECALCULATE_SCORE_DISTRIBUTION)
+                && BOQA.this.TRY_LOADING_SCORE_DISTRIBUTION && scoreDistributionsFile.exists()) {
+                try {
+                    ScoreDistributionStore store =
+                        ScoreDistributionStore.open(scoreDistributionsFile, scoreDistributionHash(name()),
+                            numberOfSlots);
+                    if (store != null) {
+                        this.scoreDistributions = new ApproximatedEmpiricalDistributions(store);
+                        distributionLoaded = true;
+                        logger.info("Score distribution mapped from \"{}\"", scoreDistributionsFile.getAbsolutePath());
+                    } else {
+                        logger.info("Ignoring stale score distribution \"{}\"",
+                            scoreDistributionsFile.getAbsolutePath());
                     }
+                } catch (IOException e) {
+                    logger.warn("Failed to read score distribution: {}", e.getMessage(), e);
+                }
+            }
 
-                    logger.info("Score distribution has been precalculated");
-
-                    if (BOQA.this.STORE_SCORE_DISTRIBUTION && !distributionLoaded) {
-                        File outFile = new File(scoreDistributionsName);
-                        try (OutputStream underlyingStream = new GZIPOutputStream(new FileOutputStream(outFile));
-                            ObjectOutputStream oos = new ObjectOutputStream(underlyingStream)) {
-                            /*
-                             * The fingerprint shall ensure that the score distribution and ontology/associations are
-                             * compatible
-                             */
-                            oos.writeInt(fingerprint());
+            if (BOQA.this.CACHE_SCORE_DISTRIBUTION || BOQA.this.PRECALCULATE_SCORE_DISTRIBUTION) {
+                if (!distributionLoaded) {
+                    this.scoreDistributions = new ApproximatedEmpiricalDistributions(numberOfSlots);
+                }
+                this.pendingScoreDistributions = new AtomicReferenceArray<FutureTask<IDistribution>>(numberOfSlots);
+            }
 
-                            /* Finally, Write store distribution */
-                            oos.writeObject(this.scoreDistributions);
+            /* Stored distributions are complete, they are decoded lazily on demand */
+            return BOQA.this.PRECALCULATE_SCORE_DISTRIBUTION && !distributionLoaded;
+        }
 
-                            logger.info("Score distribution written to \"{}\"", outFile.getAbsolutePath());
-                        } catch (IOException e) {
-                            logger.warn("Failed to write score distribution: {}", e.getMessage(), e);
-                        }
-                    }
-                }
+        /**
+         * Stores the precalculated score distribution if this is requested by the settings.
+         */
+        public void storeDistribution()
+        {
+            if (!BOQA.this.STORE_SCORE_DISTRIBUTION) {
+                return;
             }
 
+            File scoreDistributionsFile = scoreDistributionsFile();
+            try {
+                ScoreDistributionStore.write(scoreDistributionsFile, scoreDistributionHash(name()),
+                    this.scoreDistributions, numberOfScoreDistributionSlots());
+                logger.info("Score distribution written to \"{}\"", scoreDistributionsFile.getAbsolutePath());
+            } catch (IOException e) {
+                logger.warn("Failed to write score distribution: {}", e.getMessage(), e);
+            }
         }
     }
 
@@ -2518,9 +3686,26 @@ public String name()
      * @return
      */
     private double scoreMaxAvg(int[] tl1, int[] tl2, ITermSim termSim)
+    {
+        return scoreMaxAvg(tl1, 0, tl1.length, tl2, termSim);
+    }
+
+    /**
+     * Score a range of a list of terms against a second list of terms according to max-avg-of-best method using the
+     * given term similarity measure.
+     *
+     * @param tl1
+     * @param offset the index of the first term of tl1 to be considered
+     * @param length the number of terms of tl1 to be considered
+     * @param tl2
+     * @param termSim
+     * @return
+     */
+    private double scoreMaxAvg(int[] tl1, int offset, int length, int[] tl2, ITermSim termSim)
     {
         double totalScore = 0;
-        for (int t1 : tl1) {
+        for (int i = offset; i < offset + length; i++) {
+            int t1 = tl1[i];
             double maxScore = Double.NEGATIVE_INFINITY;
 
             for (int t2 : tl2) {
@@ -2532,7 +3717,7 @@ private double scoreMaxAvg(int[] tl1, int[] tl2, ITermSim termSim)
 
             totalScore += maxScore;
         }
-        totalScore /= tl1.length;
+        totalScore /= length;
         return totalScore;
     }
 
@@ -2580,17 +3765,32 @@ public double jcScoreMaxAvg(int[] tl1, int[] tl2)
      * @return
      */
     private double scoreMaxAvgVsItem(int[] tl1, int item, AbstractTermSim termSim)
+    {
+        return scoreMaxAvgVsItem(tl1, 0, tl1.length, item, termSim);
+    }
+
+    /**
+     * Sim score avg of a range of a list of terms vs an item.
+     *
+     * @param tl1
+     * @param offset the index of the first term of tl1 to be considered
+     * @param length the number of terms of tl1 to be considered
+     * @param item
+     * @return
+     */
+    private double scoreMaxAvgVsItem(int[] tl1, int offset, int length, int item, AbstractTermSim termSim)
     {
         if (termSim.maxScoreForItem != null) {
+            ItemMaxScoreTable maxScores = termSim.maxScoreForItem;
             double score = 0;
-            for (int t1 : tl1) {
-                score += termSim.maxScoreForItem[item][t1];
+            for (int i = offset; i < offset + length; i++) {
+                score += maxScores.get(tl1[i], item);
             }
-            score /= tl1.length;
+            score /= length;
             return score;
         }
 
-        return scoreMaxAvg(tl1, this.items2DirectTerms[item], termSim);
+        return scoreMaxAvg(tl1, offset, length, this.items2DirectTerms[item], termSim);
     }
 
     /**
@@ -2642,6 +3842,22 @@ private double scoreVsItem(int[] tl1, int item, AbstractTermSim termSim)
         return scoreMaxAvgVsItem(tl1, item, termSim);
     }
 
+    /**
+     * Score the query with the given index of a flat query buffer vs. an item using the default method and using the
+     * supplied term similarity measure.
+     *
+     * @param queries the flat query buffer as returned by getRandomizedQueries()
+     * @param querySize the size of each query in the buffer
+     * @param query the index of the query
+     * @param item
+     * @param termSim
+     * @return
+     */
+    private double scoreQueryVsItem(int[] queries, int querySize, int query, int item, AbstractTermSim termSim)
+    {
+        return scoreMaxAvgVsItem(queries, query * querySize, querySize, item, termSim);
+    }
+
     /**
      * Score one list of terms vs an item using the default method..
      *
@@ -2694,39 +3910,100 @@ private int simPValue(Random rnd, int[] observedTerms,
                 querySize = this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION;
             }
 
-            int[][] queries = getRandomizedQueries(rnd, querySize);
+            int[] queries = getRandomizedQueries(querySize);
 
             if (this.CACHE_SCORE_DISTRIBUTION || this.PRECALCULATE_SCORE_DISTRIBUTION) {
-                ApproximatedEmpiricalDistribution d = termSim.getScoreDistribution(querySize, item, queries);
+                IDistribution d = termSim.getScoreDistribution(querySize, item, queries);
                 res.marginals[item] = 1 - (d.cdf(score, false) - d.prob(score));
+                res.draws[item] = this.SIZE_OF_SCORE_DISTRIBUTION;
             } else {
                 int count = 0;
-
-                for (int j = 0; j < this.SIZE_OF_SCORE_DISTRIBUTION; j++) {
-                    double randomScore = scoreVsItem(queries[j], item, termSim);
-                    if (randomScore >= score) {
-                        count++;
+                int j = 0;
+
+                while (j < this.SIZE_OF_SCORE_DISTRIBUTION) {
+                    int end = nextPValueCheckpoint(j);
+                    for (; j < end; j++) {
+                        double randomScore = scoreQueryVsItem(queries, querySize, j, item, termSim);
+                        if (randomScore >= score) {
+                            count++;
+                        }
+                    }
+                    if (isPValueDecided(count, j)) {
+                        break;
                     }
                 }
 
-                res.marginals[item] = count / (double) this.SIZE_OF_SCORE_DISTRIBUTION;
+                res.marginals[item] = count / (double) j;
+                res.draws[item] = j;
             }
         } else {
             int count = 0;
+            int j = 0;
             int[] shuffledTerms = newShuffledTerms();
 
-            for (int j = 0; j < this.SIZE_OF_SCORE_DISTRIBUTION; j++) {
-                chooseTerms(rnd, observedTerms.length, randomizedTerms, shuffledTerms);
-                double randomScore = scoreVsItem(randomizedTerms, item, termSim);
-                if (randomScore >= score) {
-                    count++;
+            while (j < this.SIZE_OF_SCORE_DISTRIBUTION) {
+                int end = nextPValueCheckpoint(j);
+                for (; j < end; j++) {
+                    chooseTerms(rnd, observedTerms.length, randomizedTerms, shuffledTerms);
+                    double randomScore = scoreVsItem(randomizedTerms, item, termSim);
+                    if (randomScore >= score) {
+                        count++;
+                    }
+                }
+                if (isPValueDecided(count, j)) {
+                    break;
                 }
             }
-            res.marginals[item] = count / (double) this.SIZE_OF_SCORE_DISTRIBUTION;
+            res.marginals[item] = count / (double) j;
+            res.draws[item] = j;
         }
         return querySize;
     }
 
+    /**
+     * Returns the number of random scores after which the next check whether the p value is decided shall be made.
+     *
+     * @param draws the number of random scores drawn so far
+     * @return
+     */
+    private int nextPValueCheckpoint(int draws)
+    {
+        if (!this.ADAPTIVE_PVALUES) {
+            return this.SIZE_OF_SCORE_DISTRIBUTION;
+        }
+        return Math.min(draws + ADAPTIVE_PVALUE_BATCH_SIZE, this.SIZE_OF_SCORE_DISTRIBUTION);
+    }
+
+    /**
+     * Decides whether the p value estimated by the given numbers is accurate enough, i.e., whether the Wilson score
+     * interval of the p value lies completely below or above the significance level or whether its relative half
+     * width is below the relative error.
+     *
+     * @param count the number of random scores that were at least as large as the observed score
+     * @param draws the number of random scores drawn so far
+     * @return
+     */
+    private boolean isPValueDecided(int count, int draws)
+    {
+        if (!this.ADAPTIVE_PVALUES) {
+            return false;
+        }
+
+        double n = draws;
+        double p = count / n;
+        double z2 = ADAPTIVE_PVALUE_Z * ADAPTIVE_PVALUE_Z;
+        double denom = 1 + z2 / n;
+        double center = (p + z2 / (2 * n)) / denom;
+        double halfWidth = ADAPTIVE_PVALUE_Z * Math.sqrt(p * (1 - p) / n + z2 / (4 * n * n)) / denom;
+
+        if (center + halfWidth < this.ADAPTIVE_PVALUE_SIGNIFICANCE
+            || center - halfWidth > this.ADAPTIVE_PVALUE_SIGNIFICANCE) {
+            return true;
+        }
+
+        return count > 0 && halfWidth <= this.ADAPTIVE_PVALUE_RELATIVE_ERROR * p;
+    }
+
     /**
      * Makes the calculation according to a sim score avg max. We handle the observations as an item and compare it to
      * all other items. Also calculates the significance (stored in the marginal attribute).
@@ -2736,36 +4013,65 @@ private int simPValue(Random rnd, int[] observedTerms,
      * @param rnd the random source
      * @return
      */
-    public Result simScore(boolean[] observations, boolean pval, AbstractTermSim termSim, Random rnd)
+    public Result simScore(boolean[] observations, boolean pval, final AbstractTermSim termSim, Random rnd)
     {
-        int[] observedTerms = getMostSpecificTermsSparse(observations);
-        int[] randomizedTerms = new int[observedTerms.length];
+        final int[] observedTerms = getMostSpecificTermsSparse(observations);
 
         int querySize = observedTerms.length;
+        long seed = 0;
+
+        if (this.CACHE_RANDOM_QUERIES) {
+            if (querySize > this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION) {
+                querySize = this.MAX_QUERY_SIZE_FOR_CACHED_DISTRIBUTION;
+            }
+
+            /* Create the random queries up front, so their generation is not serialized by the item tasks */
+            getRandomizedQueries(querySize);
+        } else {
+            /* Each chunk gets its own stream of random numbers which is derived from this seed */
+            seed = rnd.nextLong();
+        }
+
+        final int fixedQuerySize = querySize;
+        final RandomStream stream = new RandomStream(seed);
 
-        Result res = new Result();
+        final Result res = new Result();
         res.scores = new double[this.allItemList.size()];
         res.marginals = new double[this.allItemList.size()];
+        res.draws = new int[this.allItemList.size()];
 
         long startTime = System.currentTimeMillis();
-        long lastTime = startTime;
-
-        for (int i = 0; i < this.allItemList.size(); i++) {
-            long time = System.currentTimeMillis();
 
-            if (time - lastTime > 5000) {
-                System.out
-                    .println(termSim.name() + ": " + (time - startTime) + "ms " + i / (double) this.allItemList.size());
-                lastTime = time;
-            }
+        processItemsInParallel(new IChunkProcessor()
+        {
+            @Override
+            public void process(int chunk, int from, int to)
+            {
+                Random chunkRnd = stream.substream(chunk);
+                int[] randomizedTerms = new int[observedTerms.length];
 
-            /* Determine and remember the plain score */
-            double score = scoreMaxAvgVsItem(observedTerms, i, termSim);
-            res.scores[i] = score;
+                if (termSim.maxScoreForItem != null) {
+                    /* Determine the plain scores of the entire chunk by summing up the rows of the observed terms */
+                    for (int t : observedTerms) {
+                        termSim.maxScoreForItem.addRow(t, res.scores, from, to);
+                    }
+                    for (int i = from; i < to; i++) {
+                        res.scores[i] /= observedTerms.length;
+                    }
+                } else {
+                    for (int i = from; i < to; i++) {
+                        res.scores[i] = scoreMaxAvgVsItem(observedTerms, i, termSim);
+                    }
+                }
 
-            querySize = simPValue(rnd, observedTerms, randomizedTerms, querySize, res, i, score, termSim);
+                for (int i = from; i < to; i++) {
+                    simPValue(chunkRnd, observedTerms, randomizedTerms, fixedQuerySize, res, i, res.scores[i],
+                        termSim);
+                }
+            }
+        });
 
-        }
+        logger.debug("{}: {}ms", termSim.name(), System.currentTimeMillis() - startTime);
 
         return res;
     }
@@ -2883,101 +4189,198 @@ public double mbsim(int tl1[], int tl2[])
      */
     public Result mbScore(boolean[] observations)
     {
-        int[] observedTerms = getMostSpecificTermsSparse(observations);
+        final int[] observedTerms = getMostSpecificTermsSparse(observations);
 
-        Result res = new Result();
+        final Result res = new Result();
         res.scores = new double[this.allItemList.size()];
         res.marginals = new double[this.allItemList.size()];
 
         long startTime = System.currentTimeMillis();
-        long lastTime = startTime;
 
-        for (int i = 0; i < this.allItemList.size(); i++) {
-            long time = System.currentTimeMillis();
-
-            if (time - lastTime > 5000) {
-                System.out.println("mbScore: " + (time - startTime) + "ms " + i / (double) this.allItemList.size());
-                lastTime = time;
+        processItemsInParallel(new IChunkProcessor()
+        {
+            @Override
+            public void process(int chunk, int from, int to)
+            {
+                for (int i = from; i < to; i++) {
+                    /* Determine and remember the plain score */
+                    res.scores[i] = mbsim(observedTerms, BOQA.this.items2DirectTerms[i]);
+                }
             }
+        });
+
+        logger.debug("mbScore: {}ms", System.currentTimeMillis() - startTime);
 
-            /* Determine and remember the plain score */
-            double score = mbsim(observedTerms, this.items2DirectTerms[i]);
-            res.scores[i] = score;
-        }
         return res;
     }
 
-    /** Lock for randomized queries */
-    private ReentrantReadWriteLock queriesLock = new ReentrantReadWriteLock();
+    /**
+     * Contains for each query size the generation of random queries that is currently in progress. A slot is cleared
+     * as soon as the generated queries have been published in the query cache.
+     */
+    private AtomicReferenceArray<FutureTask<int[]>> pendingQueries;
 
     /**
-     * Returns an array containing randomized term query. In the returned array, the first index distinguishes each
-     * random query, and the second index distinguishes the terms.
+     * Returns a flat array containing randomized term queries. The terms of the j-th random query are stored at the
+     * indices from j * querySize (inclusive) to (j + 1) * querySize (exclusive). The queries of each size are
+     * generated only once. Threads that ask for queries of a size that is currently generated by another thread wait
+     * for its completion, while queries of other sizes can be generated concurrently.
      *
-     * @param rnd source of random.
      * @param querySize defines the size of the query.
      * @return
      */
-    private int[][] getRandomizedQueries(Random rnd, int querySize)
+    private int[] getRandomizedQueries(final int querySize)
     {
-        this.queriesLock.readLock().lock();
-        int[][] queries = this.queryCache.getQueries(querySize);
-        this.queriesLock.readLock().unlock();
+        int[] queries = this.queryCache.getQueries(querySize);
+        if (queries != null) {
+            return queries;
+        }
 
-        if (queries == null) {
-            this.queriesLock.writeLock().lock();
-            queries = this.queryCache.getQueries(querySize);
-            if (queries == null) {
-                int[] shuffledTerms = newShuffledTerms();
+        FutureTask<int[]> task = new FutureTask<int[]>(new Callable<int[]>()
+        {
+            @Override
+            public int[] call()
+            {
+                return createRandomizedQueries(querySize);
+            }
+        });
 
-                queries = new int[this.SIZE_OF_SCORE_DISTRIBUTION][querySize];
-                for (int j = 0; j < this.SIZE_OF_SCORE_DISTRIBUTION; j++) {
-                    chooseTerms(rnd, querySize, queries[j], shuffledTerms);
+        while (true) {
+            if (this.pendingQueries.compareAndSet(querySize, null, task)) {
+                /* We are responsible for the generation, but another thread may have finished it meanwhile */
+                try {
+                    queries = this.queryCache.getQueries(querySize);
+                    if (queries == null) {
+                        task.run();
+                        queries = getUninterruptibly(task);
+                        this.queryCache.setQueries(querySize, queries);
+                    }
+                } finally {
+                    /* Also on failure, so that later callers retry rather than seeing the failed task */
+                    this.pendingQueries.compareAndSet(querySize, task, null);
                 }
+                return queries;
+            }
+
+            FutureTask<int[]> pending = this.pendingQueries.get(querySize);
+            if (pending != null) {
+                return getUninterruptibly(pending);
+            }
 
-                this.queryCache.setQueries(querySize, queries);
+            /* The pending generation has been finished just now */
+            queries = this.queryCache.getQueries(querySize);
+            if (queries != null) {
+                return queries;
             }
-            this.queriesLock.writeLock().unlock();
         }
+    }
+
+    /**
+     * Generates the random queries of the given size. The queries are generated in parallel chunks. Each chunk uses its
+     * own random stream, which is derived from the query size and the chunk index, so the queries are the same
+     * regardless of the number of threads.
+     *
+     * @param querySize
+     * @return
+     */
+    private int[] createRandomizedQueries(final int querySize)
+    {
+        final int[] queries = new int[this.SIZE_OF_SCORE_DISTRIBUTION * querySize];
+        final RandomStream sizeStream = new RandomStream(RANDOM_QUERIES_SEED).substream(querySize);
+
+        processInParallel(this.SIZE_OF_SCORE_DISTRIBUTION, QUERIES_PER_CHUNK, new IChunkProcessor()
+        {
+            @Override
+            public void process(int chunk, int from, int to)
+            {
+                Random rnd = sizeStream.substream(chunk);
+                int[] shuffledTerms = newShuffledTerms();
+                int[] chosen = new int[querySize];
+
+                for (int j = from; j < to; j++) {
+                    chooseTerms(rnd, querySize, chosen, shuffledTerms);
+                    System.arraycopy(chosen, 0, queries, j * querySize, querySize);
+                }
+            }
+        });
+
         return queries;
     }
 
     /**
-     * Select size number of terms that are stored in chosen.
+     * Select size number of terms that are stored in chosen. If illegal queries are forbidden, the chosen terms form
+     * an antichain, i.e., none of the chosen terms is an ancestor of another chosen term. If no such antichain is
+     * found after several attempts, which is the case if the ontology has none of that size, a warning is logged once
+     * per size and terms are chosen regardless of their relations.
      *
      * @param rnd
      * @param size
      * @param chosen
-     * @param storage
+     * @param storage the distinct indices of the terms from which to choose, e.g., all terms of the slim graph. The
+     *            order of the terms is changed by this call.
      */
     public void chooseTerms(Random rnd, int size, int[] chosen, int[] storage)
     {
         if (this.FORBID_ILLEGAL_QUERIES) {
-            boolean valid;
-            int tries = 0;
+            /* The bit vector is indexed by term, hence it must cover all terms rather than just those of storage */
+            int words = Bits.words(this.term2AncestorBits.length);
+            long[] excluded = this.chooseTermsScratch.get();
+            if (excluded == null || excluded.length != words) {
+                excluded = new long[words];
+                this.chooseTermsScratch.set(excluded);
+            }
 
-            do {
-                choose(rnd, size, chosen, storage);
-                valid = true;
+            for (int attempt = 0; attempt < MAX_ANTICHAIN_ATTEMPTS; attempt++) {
+                if (chooseAntichain(rnd, size, chosen, storage, excluded)) {
+                    return;
+                }
+            }
 
-                outer: for (int i = 0; i < size; i++) {
-                    for (int j = 0; j < size; j++) {
-                        if (i == j) {
-                            continue;
-                        }
+            if (this.sizesWithoutAntichain.add(size)) {
+                logger.warn("Couldn't choose {} terms that form an antichain after {} attempts, random queries of "
+                    + "that size may contain terms together with their ancestors", size, MAX_ANTICHAIN_ATTEMPTS);
+            }
+        }
+        choose(rnd, size, chosen, storage);
+    }
 
-                        /* If a chosen term is descendant of another one, we reject the query. */
-                        if (this.slimGraph.isDescendant(chosen[i], chosen[j])) {
-                            valid = false;
-                            break outer;
-                        }
-                    }
-                }
-                tries++;
-            } while (!valid && tries < 512);
-        } else {
-            choose(rnd, size, chosen, storage);
+    /**
+     * Tries to choose size terms that form an antichain. Terms are drawn one after another from the terms that are
+     * neither an ancestor nor a descendant of an already chosen term. These are marked in a bit vector. Drawn terms
+     * that turn out to be excluded are removed from the storage lazily, so each term is looked at no more than once.
+     *
+     * @param rnd
+     * @param size
+     * @param chosen
+     * @param storage
+     * @param excluded a bit vector of cleared bits, which is cleared again on return.
+     * @return whether size terms could be chosen.
+     */
+    private boolean chooseAntichain(Random rnd, int size, int[] chosen, int[] storage, long[] excluded)
+    {
+        int available = storage.length;
+        int k = 0;
+
+        while (k < size && available > 0) {
+            int chosenIndex = rnd.nextInt(available);
+            int chosenTerm = storage[chosenIndex];
+
+            /* Place the term behind the available terms, regardless of whether it is chosen or excluded */
+            available--;
+            storage[chosenIndex] = storage[available];
+            storage[available] = chosenTerm;
+
+            if (Bits.get(excluded, chosenTerm)) {
+                continue;
+            }
+
+            chosen[k++] = chosenTerm;
+            Bits.or(excluded, this.term2AncestorBits[chosenTerm]);
+            Bits.or(excluded, this.term2DescendantBits[chosenTerm]);
         }
+
+        Arrays.fill(excluded, 0);
+        return k == size;
     }
 
     /**
@@ -0,0 +1,186 @@
+/* Copyright (c) 2010-2012 Sebastian Bauer
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * * Neither the name of Sebastian Bauer nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE.  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sonumina.boqa.calculation;
+
+/**
+ * Static helpers for sets of terms that are represented as bit vectors, i.e., as arrays of words in which bit (i % 64)
+ * of word (i / 64) denotes whether term i is contained.
+ *
+ * @author Sebastian Bauer
+ */
+final class Bits
+{
+    private Bits()
+    {
+    }
+
+    /**
+     * Returns the number of words needed to represent the given number of bits.
+     *
+     * @param numberOfBits
+     * @return
+     */
+    static int words(int numberOfBits)
+    {
+        return (numberOfBits + 63) >>> 6;
+    }
+
+    static boolean get(long[] bits, int i)
+    {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    static void set(long[] bits, int i)
+    {
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    static void clear(long[] bits, int i)
+    {
+        bits[i >>> 6] &= ~(1L << i);
+    }
+
+    /**
+     * Sets all bits of mask in bits.
+     *
+     * @param bits
+     * @param mask
+     */
+    static void or(long[] bits, long[] mask)
+    {
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] |= mask[i];
+        }
+    }
+
+    /**
+     * Clears all bits of mask in bits.
+     *
+     * @param bits
+     * @param mask
+     */
+    static void andNot(long[] bits, long[] mask)
+    {
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] &= ~mask[i];
+        }
+    }
+
+    /**
+     * Returns the number of bits that are set.
+     *
+     * @param bits
+     * @return
+     */
+    static int count(long[] bits)
+    {
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the bit vector of the given dense representation.
+     *
+     * @param dense
+     * @return
+     */
+    static long[] fromBooleans(boolean[] dense)
+    {
+        long[] bits = new long[words(dense.length)];
+        for (int i = 0; i < dense.length; i++) {
+            if (dense[i]) {
+                set(bits, i);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Returns the dense representation of the given bit vector.
+     *
+     * @param bits
+     * @param numberOfBits
+     * @return
+     */
+    static boolean[] toBooleans(long[] bits, int numberOfBits)
+    {
+        boolean[] dense = new boolean[numberOfBits];
+        for (int word = 0; word < bits.length; word++) {
+            long w = bits[word];
+            while (w != 0) {
+                dense[(word << 6) + Long.numberOfTrailingZeros(w)] = true;
+                w &= w - 1;
+            }
+        }
+        return dense;
+    }
+
+    /**
+     * Returns the indices of the bits that are set in ascending order.
+     *
+     * @param bits
+     * @return
+     */
+    static int[] toIndices(long[] bits)
+    {
+        int[] indices = new int[count(bits)];
+        toIndices(bits, indices);
+        return indices;
+    }
+
+    /**
+     * Stores the indices of the bits that are set in ascending order in the given array, which must be large enough.
+     *
+     * @param bits
+     * @param indices
+     * @return the number of indices.
+     */
+    static int toIndices(long[] bits, int[] indices)
+    {
+        int i = 0;
+        for (int word = 0; word < bits.length; word++) {
+            long w = bits[word];
+            while (w != 0) {
+                indices[i++] = (word << 6) + Long.numberOfTrailingZeros(w);
+                w &= w - 1;
+            }
+        }
+        return i;
+    }
+}
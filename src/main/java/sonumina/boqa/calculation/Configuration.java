@@ -65,6 +65,17 @@ final public void decrement(NodeCase c)
         this.stats[c.ordinal()]--;
     }
 
+    /**
+     * Adds the given number of cases for the given case.
+     *
+     * @param c
+     * @param count
+     */
+    final public void add(NodeCase c, int count)
+    {
+        this.stats[c.ordinal()] += count;
+    }
+
     @Override
     public String toString()
     {
@@ -0,0 +1,154 @@
+/* Copyright (c) 2010-2012 Sebastian Bauer
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * * Neither the name of Sebastian Bauer nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE.  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sonumina.boqa.calculation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ontologizer.types.ByteString;
+
+/**
+ * Parses the frequency information of annotations, e.g., "25%", "3/7" or "frequent". As the annotations use only a
+ * small number of distinct frequency strings, the results are remembered so that each string is parsed only once.
+ * Instances can be used by several threads at the same time.
+ *
+ * @author Sebastian Bauer
+ */
+public final class FrequencyParser
+{
+    private static Logger logger = LoggerFactory.getLogger(FrequencyParser.class);
+
+    /** Matches percentages */
+    static final Pattern PERCENTAGE_PATTERN = Pattern.compile("(\\d+)\\.?(\\d*)\\s*%");
+
+    /** Matches fractions */
+    static final Pattern FRACTION_PATTERN = Pattern.compile("(\\d+)/(\\d+)");
+
+    /** The already parsed frequencies */
+    private final ConcurrentHashMap<ByteString, Double> parsed = new ConcurrentHashMap<ByteString, Double>();
+
+    /**
+     * Returns the frequency that is described by the given string. The string is parsed only if it was not seen
+     * before.
+     *
+     * @param freq the frequency string, may be null.
+     * @return the frequency, 1.0 if freq is null or empty or the frequency couldn't be determined.
+     */
+    public double get(ByteString freq)
+    {
+        if (freq == null) {
+            return 1.0;
+        }
+
+        Double f = this.parsed.get(freq);
+        if (f == null) {
+            f = parse(freq.toString());
+            Double previous = this.parsed.putIfAbsent(freq, f);
+            if (previous != null) {
+                f = previous;
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Returns the number of distinct frequency strings that were parsed so far.
+     *
+     * @return
+     */
+    public int size()
+    {
+        return this.parsed.size();
+    }
+
+    /**
+     * Parses the given frequency string.
+     *
+     * @param freq the frequency string, may be null.
+     * @return the frequency, 1.0 if freq is null or empty or the frequency couldn't be determined.
+     */
+    public static double parse(String freq)
+    {
+        double f = 1.0;
+
+        if (freq == null || freq.length() == 0) {
+            return 1.0;
+        }
+
+        Matcher matcher = PERCENTAGE_PATTERN.matcher(freq);
+        if (matcher.matches()) {
+            String fractionalPart = matcher.group(2);
+            if (fractionalPart == null || fractionalPart.length() == 0) {
+                fractionalPart = "0";
+            }
+
+            f =
+                Double.parseDouble(matcher.group(1)) + Double.parseDouble(fractionalPart)
+                    / Math.pow(10, fractionalPart.length());
+            f /= 100.0;
+        } else {
+            matcher = FRACTION_PATTERN.matcher(freq);
+            if (matcher.matches()) {
+                f = Double.parseDouble(matcher.group(1)) / Double.parseDouble(matcher.group(2));
+            } else {
+                if (freq.equalsIgnoreCase("very rare")) {
+                    f = 0.01;
+                } else if (freq.equalsIgnoreCase("rare")) {
+                    f = 0.05;
+                } else if (freq.equalsIgnoreCase("occasional")) {
+                    f = 0.075;
+                } else if (freq.equalsIgnoreCase("frequent")) {
+                    f = 0.33;
+                } else if (freq.equalsIgnoreCase("typical")) {
+                    f = 0.50;
+                } else if (freq.equalsIgnoreCase("common")) {
+                    f = 0.75;
+                } else if (freq.equalsIgnoreCase("hallmark")) {
+                    f = 0.90;
+                } else if (freq.equalsIgnoreCase("obligate")) {
+                    f = 1;
+                } else {
+                    logger.info("Unknown frequency identifier: {}", freq);
+                }
+            }
+        }
+        return f;
+    }
+}
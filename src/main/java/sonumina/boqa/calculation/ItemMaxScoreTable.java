@@ -0,0 +1,273 @@
+/* Copyright (c) 2010-2012 Sebastian Bauer
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * * Neither the name of Sebastian Bauer nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE.  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sonumina.boqa.calculation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Table that contains for each term and each item the maximal similarity of the term to any term directly associated
+ * to the item. The table is stored term-major, i.e., the values of a single term for all items are contiguous. This
+ * allows to score a query against all items by summing up the rows of the query terms.
+ *
+ * Values are stored with reduced precision. They are either stored as floats or quantized to 16 bits, in which case
+ * each row has its own offset and scale and the absolute error of a value is at most (max - min) / 131070, where min
+ * and max are the extreme values of the row. The table may be backed by a memory-mapped temporary file instead of the
+ * heap.
+ *
+ * @author Sebastian Bauer
+ */
+public class ItemMaxScoreTable
+{
+    /**
+     * The precision in which the values are stored.
+     *
+     * @author Sebastian Bauer
+     */
+    public static enum Precision
+    {
+        /** Values are stored as 32-bit floats */
+        FLOAT,
+
+        /** Values are quantized to 16 bits per row */
+        QUANTIZED
+    }
+
+    /**
+     * Version of the way values are stored. Must be increased whenever stored values change, so that score
+     * distributions that have been derived from them are considered to be stale. Version 1 clamps infinite values of
+     * quantized rows.
+     */
+    public static final int VERSION = 1;
+
+    /** Largest number of bytes that are mapped at once */
+    private static final long MAX_MAPPED_BLOCK_SIZE = 1L << 30;
+
+    /** Number of quantization levels minus one */
+    private static final int QUANTIZATION_MAX = 0xffff;
+
+    private final int numberOfItems;
+
+    private final Precision precision;
+
+    /** The rows of the table if values are stored as floats */
+    private final FloatBuffer[] floatRows;
+
+    /** The rows of the table if values are quantized */
+    private final ShortBuffer[] shortRows;
+
+    /** For quantized values the offset of each row */
+    private final double[] rowOffsets;
+
+    /** For quantized values the scale of each row */
+    private final double[] rowScales;
+
+    /**
+     * Constructs a new table.
+     *
+     * @param numberOfTerms
+     * @param numberOfItems
+     * @param precision the precision in which the values are stored.
+     * @param mapped whether the table shall be backed by a memory-mapped temporary file.
+     * @throws IOException if the temporary file couldn't be created.
+     */
+    public ItemMaxScoreTable(int numberOfTerms, int numberOfItems, Precision precision, boolean mapped)
+        throws IOException
+    {
+        this.numberOfItems = numberOfItems;
+        this.precision = precision;
+
+        int bytesPerValue = precision == Precision.FLOAT ? 4 : 2;
+        Buffer[] rows;
+
+        if (precision == Precision.FLOAT) {
+            this.floatRows = new FloatBuffer[numberOfTerms];
+            this.shortRows = null;
+            this.rowOffsets = null;
+            this.rowScales = null;
+            rows = this.floatRows;
+        } else {
+            this.floatRows = null;
+            this.shortRows = new ShortBuffer[numberOfTerms];
+            this.rowOffsets = new double[numberOfTerms];
+            this.rowScales = new double[numberOfTerms];
+            rows = this.shortRows;
+        }
+
+        if (!mapped) {
+            for (int t = 0; t < numberOfTerms; t++) {
+                if (precision == Precision.FLOAT) {
+                    rows[t] = FloatBuffer.allocate(numberOfItems);
+                } else {
+                    rows[t] = ShortBuffer.allocate(numberOfItems);
+                }
+            }
+            return;
+        }
+
+        File file = File.createTempFile("itemMaxScores", ".bin");
+        file.deleteOnExit();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            long rowSize = (long) numberOfItems * bytesPerValue;
+            int rowsPerBlock = (int) Math.max(1, Math.min(numberOfTerms, MAX_MAPPED_BLOCK_SIZE / Math.max(1, rowSize)));
+
+            for (int firstRow = 0; firstRow < numberOfTerms; firstRow += rowsPerBlock) {
+                int blockRows = Math.min(rowsPerBlock, numberOfTerms - firstRow);
+                MappedByteBuffer block =
+                    channel.map(FileChannel.MapMode.READ_WRITE, firstRow * rowSize, blockRows * rowSize);
+
+                for (int r = 0; r < blockRows; r++) {
+                    block.position((int) (r * rowSize));
+                    block.limit((int) ((r + 1) * rowSize));
+                    ByteBuffer row = block.slice();
+                    if (precision == Precision.FLOAT) {
+                        rows[firstRow + r] = row.asFloatBuffer();
+                    } else {
+                        rows[firstRow + r] = row.asShortBuffer();
+                    }
+                    block.clear();
+                }
+            }
+        }
+
+        /* Mappings stay valid after the channel has been closed */
+        file.delete();
+    }
+
+    /**
+     * Returns the precision of the table.
+     *
+     * @return
+     */
+    public Precision getPrecision()
+    {
+        return this.precision;
+    }
+
+    /**
+     * Sets the values of the given term for all items. Different rows may be set concurrently.
+     *
+     * @param term
+     * @param values the values indexed by item. If quantized, infinite values are clamped to the minimal or maximal
+     *            finite value of the row.
+     * @throws IllegalArgumentException if quantized and a value is NaN.
+     */
+    public void setRow(int term, double[] values)
+    {
+        if (this.precision == Precision.FLOAT) {
+            FloatBuffer row = this.floatRows[term];
+            for (int i = 0; i < this.numberOfItems; i++) {
+                row.put(i, (float) values[i]);
+            }
+            return;
+        }
+
+        /* Infinite values are clamped to the finite extremes of the row */
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < this.numberOfItems; i++) {
+            if (Double.isNaN(values[i])) {
+                throw new IllegalArgumentException("Value of item " + i + " of term " + term + " is NaN");
+            }
+            if (!Double.isInfinite(values[i])) {
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+            }
+        }
+        if (min > max) {
+            min = max = 0;
+        }
+
+        double scale = (max - min) / QUANTIZATION_MAX;
+        ShortBuffer row = this.shortRows[term];
+        for (int i = 0; i < this.numberOfItems; i++) {
+            double value = Math.min(Math.max(values[i], min), max);
+            int q = scale > 0 ? (int) Math.round((value - min) / scale) : 0;
+            row.put(i, (short) q);
+        }
+        this.rowOffsets[term] = min;
+        this.rowScales[term] = scale;
+    }
+
+    /**
+     * Returns the value for the given term and item.
+     *
+     * @param term
+     * @param item
+     * @return
+     */
+    public double get(int term, int item)
+    {
+        if (this.precision == Precision.FLOAT) {
+            return this.floatRows[term].get(item);
+        }
+        return this.rowOffsets[term] + (this.shortRows[term].get(item) & 0xffff) * this.rowScales[term];
+    }
+
+    /**
+     * Adds the values of the given term for the given range of items to the corresponding elements of scores.
+     *
+     * @param term
+     * @param scores the array, indexed by item, to which the values are added.
+     * @param from the first item.
+     * @param to the item following the last item.
+     */
+    public void addRow(int term, double[] scores, int from, int to)
+    {
+        if (this.precision == Precision.FLOAT) {
+            FloatBuffer row = this.floatRows[term];
+            for (int i = from; i < to; i++) {
+                scores[i] += row.get(i);
+            }
+            return;
+        }
+
+        ShortBuffer row = this.shortRows[term];
+        double offset = this.rowOffsets[term];
+        double scale = this.rowScales[term];
+        for (int i = from; i < to; i++) {
+            scores[i] += offset + (row.get(i) & 0xffff) * scale;
+        }
+    }
+}
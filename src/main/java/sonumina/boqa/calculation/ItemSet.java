@@ -0,0 +1,195 @@
+/* Copyright (c) 2010-2012 Sebastian Bauer
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * * Neither the name of Sebastian Bauer nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE.  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sonumina.boqa.calculation;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of item indices. Depending on its density, the set is stored either as a sorted array of indices
+ * or as a bitmap over all items, whichever needs less memory. Sizes of intersections and unions are determined by
+ * merging arrays, by probing the bitmap, or by counting the bits of the conjunction of two bitmaps.
+ *
+ * @author Sebastian Bauer
+ */
+public final class ItemSet
+{
+    /** The sorted items if the set is sparse, otherwise null */
+    private final int[] items;
+
+    /** The bitmap of the items if the set is dense, otherwise null */
+    private final long[] bits;
+
+    /** The number of items in the set */
+    private final int cardinality;
+
+    private ItemSet(int[] items, long[] bits, int cardinality)
+    {
+        this.items = items;
+        this.bits = bits;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * Creates the set of the given items.
+     *
+     * @param sortedItems the items in ascending order without duplicates. The array must not be modified afterwards.
+     * @param numberOfItems the total number of items, i.e., all items are smaller than this.
+     * @return
+     */
+    public static ItemSet create(int[] sortedItems, int numberOfItems)
+    {
+        int numberOfWords = (numberOfItems + 63) >>> 6;
+
+        /* An array entry needs 32 bits, the bitmap needs one word per 64 items */
+        if ((long) sortedItems.length * 32 < (long) numberOfWords * 64) {
+            return new ItemSet(sortedItems, null, sortedItems.length);
+        }
+
+        long[] bits = new long[numberOfWords];
+        for (int item : sortedItems) {
+            bits[item >>> 6] |= 1L << item;
+        }
+        return new ItemSet(null, bits, sortedItems.length);
+    }
+
+    /**
+     * @return the number of items in the set.
+     */
+    public int cardinality()
+    {
+        return this.cardinality;
+    }
+
+    /**
+     * Returns the items of the set in ascending order.
+     *
+     * @return
+     */
+    public int[] toArray()
+    {
+        if (this.bits == null) {
+            return this.items.clone();
+        }
+
+        int[] array = new int[this.cardinality];
+        int i = 0;
+        for (int word = 0; word < this.bits.length; word++) {
+            long w = this.bits[word];
+            while (w != 0) {
+                array[i++] = (word << 6) + Long.numberOfTrailingZeros(w);
+                w &= w - 1;
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Returns whether the given item is contained in the set.
+     *
+     * @param item
+     * @return
+     */
+    public boolean contains(int item)
+    {
+        if (this.bits != null) {
+            int word = item >>> 6;
+            return word < this.bits.length && (this.bits[word] & (1L << item)) != 0;
+        }
+        return Arrays.binarySearch(this.items, item) >= 0;
+    }
+
+    /**
+     * Returns the number of items that are contained in both sets.
+     *
+     * @param other
+     * @return
+     */
+    public int intersectionSize(ItemSet other)
+    {
+        if (this.bits != null && other.bits != null) {
+            int n = Math.min(this.bits.length, other.bits.length);
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                count += Long.bitCount(this.bits[i] & other.bits[i]);
+            }
+            return count;
+        }
+
+        if (this.bits != null) {
+            return other.intersectionSize(this);
+        }
+
+        if (other.bits != null) {
+            int count = 0;
+            for (int item : this.items) {
+                if (other.contains(item)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /* Both are sparse, merge the sorted arrays */
+        int[] a = this.items;
+        int[] b = other.items;
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of items that are contained in at least one of the sets.
+     *
+     * @param other
+     * @return
+     */
+    public int unionSize(ItemSet other)
+    {
+        return this.cardinality + other.cardinality - intersectionSize(other);
+    }
+}
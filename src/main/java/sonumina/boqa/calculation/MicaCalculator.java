@@ -0,0 +1,230 @@
+/* Copyright (c) 2010-2012 Sebastian Bauer
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * * Neither the name of Sebastian Bauer nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE.  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sonumina.boqa.calculation;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Determines the most informative common ancestor (mica) of two terms, i.e., the common ancestor with the maximal
+ * information content. For each term, the ancestors are kept sorted by descending information content and for each
+ * term a bitset of its ancestors is kept. The mica of two terms is then the first ancestor of one term that is also
+ * an ancestor of the other term. Only terms that have descendants get a position within the bitsets, as all other
+ * terms are only ancestors of themselves.
+ *
+ * A bounded LRU cache, which is divided into independently locked stripes, is placed in front of the calculation.
+ *
+ * @author Sebastian Bauer
+ */
+public class MicaCalculator
+{
+    /** Number of stripes of the cache, must be a power of two */
+    private static final int NUMBER_OF_STRIPES = 16;
+
+    /** Contains for each term the ancestors sorted by descending IC */
+    private final int[][] ancestorsByIC;
+
+    /** Contains for each term its position within the ancestor bitsets or -1 if the term has no descendants */
+    private final int[] bitIndex;
+
+    /** Contains for each term the bitset of its ancestors (excluding itself if it has no descendants) */
+    private final long[][] ancestorBits;
+
+    /** The stripes of the cache, null if caching is disabled */
+    private final LinkedHashMap<Long, Integer>[] cache;
+
+    /**
+     * Constructs the calculator.
+     *
+     * @param term2Ancestors the ancestors of each term including the term itself.
+     * @param terms2IC the information content of each term.
+     * @param cacheSize the maximal number of term pairs that are cached. Use 0 to disable the cache.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public MicaCalculator(int[][] term2Ancestors, final double[] terms2IC, int cacheSize)
+    {
+        int numberOfTerms = term2Ancestors.length;
+
+        /* Terms that are ancestor of another term */
+        this.bitIndex = new int[numberOfTerms];
+        Arrays.fill(this.bitIndex, -1);
+        int numberOfBits = 0;
+        for (int t = 0; t < numberOfTerms; t++) {
+            for (int a : term2Ancestors[t]) {
+                if (a != t && this.bitIndex[a] == -1) {
+                    this.bitIndex[a] = numberOfBits++;
+                }
+            }
+        }
+
+        int numberOfWords = (numberOfBits + 63) >>> 6;
+
+        this.ancestorsByIC = new int[numberOfTerms][];
+        this.ancestorBits = new long[numberOfTerms][];
+
+        Comparator<Integer> descendingIC = new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer o1, Integer o2)
+            {
+                return Double.compare(terms2IC[o2], terms2IC[o1]);
+            }
+        };
+
+        for (int t = 0; t < numberOfTerms; t++) {
+            /* A stable sort so that terms with equal IC retain the original order */
+            Integer[] sorted = new Integer[term2Ancestors[t].length];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = term2Ancestors[t][i];
+            }
+            Arrays.sort(sorted, descendingIC);
+
+            this.ancestorsByIC[t] = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                this.ancestorsByIC[t][i] = sorted[i];
+            }
+
+            long[] bits = new long[numberOfWords];
+            for (int a : term2Ancestors[t]) {
+                int bit = this.bitIndex[a];
+                if (bit != -1) {
+                    bits[bit >>> 6] |= 1L << bit;
+                }
+            }
+            this.ancestorBits[t] = bits;
+        }
+
+        if (cacheSize > 0) {
+            final int stripeCapacity = Math.max(1, cacheSize / NUMBER_OF_STRIPES);
+            this.cache = new LinkedHashMap[NUMBER_OF_STRIPES];
+            for (int i = 0; i < NUMBER_OF_STRIPES; i++) {
+                this.cache[i] = new LinkedHashMap<Long, Integer>(16, 0.75f, true)
+                {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest)
+                    {
+                        return size() > stripeCapacity;
+                    }
+                };
+            }
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /**
+     * Returns whether a is an ancestor of t (or t itself).
+     *
+     * @param a
+     * @param t
+     * @return
+     */
+    private boolean isAncestor(int a, int t)
+    {
+        if (a == t) {
+            return true;
+        }
+        int bit = this.bitIndex[a];
+        return bit != -1 && (this.ancestorBits[t][bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Calculates the mica without consulting the cache. The result doesn't depend on the order of the arguments. If
+     * there are several common ancestors with maximal IC, the one that comes first in the ancestor list of the term
+     * with the lower index is returned.
+     *
+     * @param t1
+     * @param t2
+     * @return the mica or -1 if the terms have no common ancestor.
+     */
+    public int calculate(int t1, int t2)
+    {
+        if (t1 == t2) {
+            return t1;
+        }
+        if (t1 > t2) {
+            int t = t1;
+            t1 = t2;
+            t2 = t;
+        }
+
+        for (int a : this.ancestorsByIC[t1]) {
+            if (isAncestor(a, t2)) {
+                return a;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the mica of the given terms.
+     *
+     * @param t1
+     * @param t2
+     * @return the mica or -1 if the terms have no common ancestor.
+     */
+    public int get(int t1, int t2)
+    {
+        if (this.cache == null || t1 == t2) {
+            return calculate(t1, t2);
+        }
+
+        /*
+         * Multiplying the packed pair by an odd constant keeps keys unique but spreads them, as Long.hashCode() alone
+         * would merely xor both terms
+         */
+        long key = (t1 < t2 ? ((long) t1 << 32) | t2 : ((long) t2 << 32) | t1) * 0x9E3779B97F4A7C15L;
+        LinkedHashMap<Long, Integer> stripe = this.cache[(int) (key >>> 60) & (NUMBER_OF_STRIPES - 1)];
+
+        synchronized (stripe) {
+            Integer mica = stripe.get(key);
+            if (mica != null) {
+                return mica;
+            }
+        }
+
+        int mica = calculate(t1, t2);
+
+        synchronized (stripe) {
+            stripe.put(key, mica);
+        }
+        return mica;
+    }
+}
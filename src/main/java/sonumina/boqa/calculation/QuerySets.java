@@ -35,27 +35,31 @@
 
 package sonumina.boqa.calculation;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
- * Class representing different sets of queries.
+ * Class representing different sets of queries. All queries of a given size are stored in a single flat array, i.e.,
+ * the j-th query of size s occupies the indices from j * s to (j + 1) * s - 1. Query sets are safely published, i.e.,
+ * reading is possible without any additional synchronization.
  *
  * @author Sebastian Bauer
  */
 public class QuerySets
 {
-    private int[][][] queries;
+    private final AtomicReferenceArray<int[]> queries;
 
     public QuerySets(int maxSizes)
     {
-        this.queries = new int[maxSizes][][];
+        this.queries = new AtomicReferenceArray<int[]>(maxSizes);
     }
 
-    public int[][] getQueries(int querySize)
+    public int[] getQueries(int querySize)
     {
-        return this.queries[querySize];
+        return this.queries.get(querySize);
     }
 
-    public void setQueries(int querySize, int[][] querySets)
+    public void setQueries(int querySize, int[] querySets)
     {
-        this.queries[querySize] = querySets;
+        this.queries.set(querySize, querySets);
     }
 }
@@ -0,0 +1,195 @@
+/* Copyright (c) 2010-2012 Sebastian Bauer
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * * Neither the name of Sebastian Bauer nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE.  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sonumina.boqa.calculation;
+
+import java.util.Random;
+
+/**
+ * A splittable source of pseudo random numbers based on the SplitMix64 algorithm that is also used by Java's
+ * SplittableRandom. Unlike java.util.Random, the state is not updated atomically, so an instance must not be shared
+ * among threads. Instead, each task gets its own stream by calling {@link #split()} or {@link #substream(long)} before
+ * the tasks are started. As the streams depend only on the seed and the position of the tasks, the results are the
+ * same regardless of the number of threads and the order in which the tasks are executed.
+ *
+ * @author Sebastian Bauer
+ */
+public final class RandomStream extends Random
+{
+    private static final long serialVersionUID = 1L;
+
+    /** The default increment, i.e., the odd integer closest to 2^64 divided by the golden ratio */
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /** The current state, which is advanced by gamma for each generated number */
+    private long state;
+
+    /** The increment of the state, always odd */
+    private long gamma;
+
+    /**
+     * Constructs a new stream with the given seed.
+     *
+     * @param seed
+     */
+    public RandomStream(long seed)
+    {
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    private RandomStream(long seed, long gamma)
+    {
+        super(0);
+
+        this.state = seed;
+        this.gamma = gamma;
+    }
+
+    private static long mix64(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static int mix32(long z)
+    {
+        z = (z ^ (z >>> 33)) * 0x62a9d9ed799705f5L;
+        return (int) (((z ^ (z >>> 28)) * 0xcb24d0a5c88c35b3L) >>> 32);
+    }
+
+    private static long mixGamma(long z)
+    {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+
+        /* Avoid increments with too few bit transitions */
+        int n = Long.bitCount(z ^ (z >>> 1));
+        return n < 24 ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+
+    private long nextState()
+    {
+        return this.state += this.gamma;
+    }
+
+    /**
+     * Returns a new stream that is derived from this stream. This stream is advanced.
+     *
+     * @return
+     */
+    public RandomStream split()
+    {
+        return new RandomStream(mix64(nextState()), mixGamma(nextState()));
+    }
+
+    /**
+     * Returns the stream with the given index that is derived from this stream. The stream is the same as the one
+     * that the (index + 1)-th call to {@link #split()} would return, but this stream is not advanced. Therefore,
+     * different threads can derive their streams from the same instance.
+     *
+     * @param index
+     * @return
+     */
+    public RandomStream substream(long index)
+    {
+        long base = this.state + 2 * index * this.gamma;
+        return new RandomStream(mix64(base + this.gamma), mixGamma(base + 2 * this.gamma));
+    }
+
+    @Override
+    public void setSeed(long seed)
+    {
+        /* Also called by the constructor of the super class */
+        this.state = seed;
+    }
+
+    @Override
+    protected int next(int bits)
+    {
+        return mix32(nextState()) >>> (32 - bits);
+    }
+
+    @Override
+    public int nextInt()
+    {
+        return mix32(nextState());
+    }
+
+    @Override
+    public int nextInt(int bound)
+    {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("bound must be positive");
+        }
+
+        int r = mix32(nextState());
+        int m = bound - 1;
+        if ((bound & m) == 0) {
+            /* Power of two */
+            return r & m;
+        }
+
+        /* Reject values from the incomplete last interval */
+        for (int u = r >>> 1; u + m - (r = u % bound) < 0; u = mix32(nextState()) >>> 1) {
+        }
+        return r;
+    }
+
+    @Override
+    public long nextLong()
+    {
+        return mix64(nextState());
+    }
+
+    @Override
+    public double nextDouble()
+    {
+        return (mix64(nextState()) >>> 11) * 0x1.0p-53;
+    }
+
+    @Override
+    public float nextFloat()
+    {
+        return (mix32(nextState()) >>> 8) * 0x1.0p-24f;
+    }
+
+    @Override
+    public boolean nextBoolean()
+    {
+        return mix32(nextState()) < 0;
+    }
+}
@@ -0,0 +1,264 @@
+/* Copyright (c) 2010-2012 Sebastian Bauer
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * * Neither the name of Sebastian Bauer nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE.  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sonumina.boqa.calculation;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import sonumina.math.distribution.ApproximatedEmpiricalDistribution;
+import sonumina.math.distribution.CompactEmpiricalDistribution;
+import sonumina.math.distribution.IDistribution;
+
+/**
+ * A binary file containing score distributions. The file starts with a header consisting of a magic number, the
+ * version of the format, a hash of the content the distributions are based on and the number of slots. The header is
+ * followed by an index that contains for each slot the offset of the encoded distribution (or -1 if the slot is
+ * empty) and by the encoded distributions. The file is memory-mapped and distributions are decoded only on demand.
+ *
+ * @author Sebastian Bauer
+ */
+public class ScoreDistributionStore
+{
+    /** Identifies the file format */
+    private static final int MAGIC = 0x424f5144;
+
+    /** The version of the file format */
+    private static final int VERSION = 1;
+
+    /** Size of the chunks in which the file is mapped. Encoded distributions never span two chunks. */
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    /** Type tag of ApproximatedEmpiricalDistribution */
+    private static final byte TYPE_APPROXIMATED = 1;
+
+    /** Type tag of CompactEmpiricalDistribution */
+    private static final byte TYPE_COMPACT = 2;
+
+    /** The offsets of the distributions */
+    private final LongBuffer index;
+
+    /** The mapped chunks of the file */
+    private final MappedByteBuffer[] chunks;
+
+    private ScoreDistributionStore(LongBuffer index, MappedByteBuffer[] chunks)
+    {
+        this.index = index;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Returns the number of slots of the store.
+     *
+     * @return
+     */
+    public int getNumberOfSlots()
+    {
+        return this.index.capacity();
+    }
+
+    /**
+     * Decodes the distribution of the given slot.
+     *
+     * @param slot
+     * @return the distribution or null if the slot is empty.
+     */
+    public IDistribution getDistribution(int slot)
+    {
+        long offset = this.index.get(slot);
+        if (offset < 0) {
+            return null;
+        }
+
+        ByteBuffer buf = this.chunks[(int) (offset / CHUNK_SIZE)].duplicate();
+        buf.position((int) (offset % CHUNK_SIZE));
+
+        byte type = buf.get();
+        switch (type) {
+            case TYPE_APPROXIMATED:
+                return ApproximatedEmpiricalDistribution.read(buf);
+            case TYPE_COMPACT:
+                return CompactEmpiricalDistribution.read(buf);
+            default:
+                throw new IllegalStateException("Unknown distribution type " + type + " in slot " + slot);
+        }
+    }
+
+    /**
+     * Opens the given store.
+     *
+     * @param file the file to be opened.
+     * @param hash the expected hash of the content.
+     * @param numberOfSlots the expected number of slots.
+     * @return the store or null if the store doesn't match the expected hash or number of slots.
+     * @throws IOException
+     */
+    public static ScoreDistributionStore open(File file, byte[] hash, int numberOfSlots) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            int headerSize = 4 + 4 + 4 + hash.length + 4;
+            if (size < headerSize) {
+                return null;
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerSize);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return null;
+            }
+
+            byte[] storedHash = new byte[header.getInt()];
+            if (storedHash.length != hash.length) {
+                return null;
+            }
+            header.get(storedHash);
+            if (!Arrays.equals(storedHash, hash) || header.getInt() != numberOfSlots) {
+                return null;
+            }
+
+            if (size < headerSize + 8L * numberOfSlots) {
+                throw new IOException("File \"" + file + "\" is truncated");
+            }
+
+            LongBuffer index =
+                channel.map(FileChannel.MapMode.READ_ONLY, headerSize, 8L * numberOfSlots).asLongBuffer();
+
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, size - start));
+            }
+
+            /* Mappings stay valid after the channel has been closed */
+            return new ScoreDistributionStore(index, chunks);
+        }
+    }
+
+    /**
+     * Writes the given distributions to the given file. The file is first written to a temporary file which then
+     * replaces the given file.
+     *
+     * @param file the destination.
+     * @param hash the hash of the content the distributions are based on.
+     * @param distributions the distributions to be written.
+     * @param numberOfSlots the number of slots.
+     * @throws IOException
+     */
+    public static void write(File file, byte[] hash, ApproximatedEmpiricalDistributions distributions,
+        int numberOfSlots) throws IOException
+    {
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(hash.length);
+            out.write(hash);
+            out.writeInt(numberOfSlots);
+
+            long indexPosition = 4 + 4 + 4 + hash.length + 4;
+            long position = indexPosition + 8L * numberOfSlots;
+
+            /* Reserve space for the index, it is written when all offsets are known */
+            for (int i = 0; i < numberOfSlots; i++) {
+                out.writeLong(-1);
+            }
+
+            long[] offsets = new long[numberOfSlots];
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            DataOutputStream encodedOut = new DataOutputStream(encoded);
+
+            for (int slot = 0; slot < numberOfSlots; slot++) {
+                IDistribution d = distributions.getDistribution(slot);
+                if (d == null) {
+                    offsets[slot] = -1;
+                    continue;
+                }
+
+                encoded.reset();
+                if (d instanceof ApproximatedEmpiricalDistribution) {
+                    encodedOut.writeByte(TYPE_APPROXIMATED);
+                    ((ApproximatedEmpiricalDistribution) d).write(encodedOut);
+                } else if (d instanceof CompactEmpiricalDistribution) {
+                    encodedOut.writeByte(TYPE_COMPACT);
+                    ((CompactEmpiricalDistribution) d).write(encodedOut);
+                } else {
+                    throw new IllegalArgumentException("Distribution of type " + d.getClass().getName()
+                        + " cannot be stored");
+                }
+                encodedOut.flush();
+
+                /* Make sure that the encoded distribution doesn't span two chunks */
+                if (position / CHUNK_SIZE != (position + encoded.size() - 1) / CHUNK_SIZE) {
+                    long padding = CHUNK_SIZE - position % CHUNK_SIZE;
+                    for (long i = 0; i < padding; i++) {
+                        out.writeByte(0);
+                    }
+                    position += padding;
+                }
+
+                offsets[slot] = position;
+                encoded.writeTo(out);
+                position += encoded.size();
+            }
+            out.flush();
+
+            ByteBuffer index = ByteBuffer.allocate(8 * numberOfSlots);
+            index.asLongBuffer().put(offsets);
+            FileChannel channel = fos.getChannel();
+            channel.position(indexPosition);
+            while (index.hasRemaining()) {
+                channel.write(index);
+            }
+        }
+
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+}
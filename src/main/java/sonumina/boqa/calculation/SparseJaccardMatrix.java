@@ -0,0 +1,191 @@
+/* Copyright (c) 2010-2012 Sebastian Bauer
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * * Neither the name of Sebastian Bauer nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE.  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sonumina.boqa.calculation;
+
+import java.util.Arrays;
+
+/**
+ * A sparse representation of the Jaccard indices of all pairs of terms. Only pairs of terms that share at least one
+ * item are stored; the index of all other pairs is 0. For each term, the stored partners with a larger index are kept
+ * in a sorted array along with the indices in single precision, so an index is looked up by a binary search within
+ * the row of the smaller term.
+ *
+ * The rows are calculated from the inverted item to terms lists, i.e., for a given term only the terms annotated to
+ * the items of the term are visited.
+ *
+ * @author Sebastian Bauer
+ */
+public final class SparseJaccardMatrix
+{
+    /** The annotated items of each term */
+    private final ItemSet[] term2Items;
+
+    /** The terms annotated to each item */
+    private final int[][] item2Terms;
+
+    /** Contains for each term the sorted partner terms with a larger index that share items with the term */
+    private final int[][] partners;
+
+    /** Contains the Jaccard index for each entry of partners */
+    private final float[][] values;
+
+    /**
+     * Constructs the matrix. The rows are initially empty and need to be calculated via calculateRow().
+     *
+     * @param term2Items the annotated items of each term.
+     * @param numberOfItems the total number of items.
+     */
+    public SparseJaccardMatrix(ItemSet[] term2Items, int numberOfItems)
+    {
+        int numberOfTerms = term2Items.length;
+
+        this.term2Items = term2Items;
+        this.partners = new int[numberOfTerms][];
+        this.values = new float[numberOfTerms][];
+
+        /* Invert the term to items relation */
+        int[][] termItems = new int[numberOfTerms][];
+        int[] numberOfTermsOfItem = new int[numberOfItems];
+        for (int t = 0; t < numberOfTerms; t++) {
+            termItems[t] = term2Items[t].toArray();
+            for (int item : termItems[t]) {
+                numberOfTermsOfItem[item]++;
+            }
+        }
+
+        this.item2Terms = new int[numberOfItems][];
+        for (int item = 0; item < numberOfItems; item++) {
+            this.item2Terms[item] = new int[numberOfTermsOfItem[item]];
+            numberOfTermsOfItem[item] = 0;
+        }
+        for (int t = 0; t < numberOfTerms; t++) {
+            for (int item : termItems[t]) {
+                this.item2Terms[item][numberOfTermsOfItem[item]++] = t;
+            }
+        }
+    }
+
+    /**
+     * @return the number of terms.
+     */
+    public int getNumberOfTerms()
+    {
+        return this.partners.length;
+    }
+
+    /**
+     * Calculates the row of the given term. Different rows may be calculated concurrently, as long as each thread uses
+     * its own counts array.
+     *
+     * @param term the term whose row shall be calculated.
+     * @param counts scratch space with an entry for each term. All entries must be 0 and are 0 again on return.
+     */
+    public void calculateRow(int term, int[] counts)
+    {
+        /* Count the shared items for all partners with larger index, items2Terms are sorted by term */
+        int[] touched = new int[16];
+        int numberOfTouched = 0;
+
+        for (int item : this.term2Items[term].toArray()) {
+            int[] terms = this.item2Terms[item];
+            int k = Arrays.binarySearch(terms, term) + 1;
+            for (; k < terms.length; k++) {
+                int partner = terms[k];
+                if (counts[partner]++ == 0) {
+                    if (numberOfTouched == touched.length) {
+                        touched = Arrays.copyOf(touched, touched.length * 2);
+                    }
+                    touched[numberOfTouched++] = partner;
+                }
+            }
+        }
+
+        Arrays.sort(touched, 0, numberOfTouched);
+
+        int[] rowPartners = Arrays.copyOf(touched, numberOfTouched);
+        float[] rowValues = new float[numberOfTouched];
+        int cardinality = this.term2Items[term].cardinality();
+        for (int i = 0; i < numberOfTouched; i++) {
+            int partner = rowPartners[i];
+            int intersection = counts[partner];
+            rowValues[i] =
+                (float) ((double) intersection / (cardinality + this.term2Items[partner].cardinality() - intersection));
+            counts[partner] = 0;
+        }
+
+        this.partners[term] = rowPartners;
+        this.values[term] = rowValues;
+    }
+
+    /**
+     * Returns the Jaccard index of the given terms.
+     *
+     * @param t1
+     * @param t2
+     * @return
+     */
+    public double get(int t1, int t2)
+    {
+        if (t1 == t2) {
+            return 1;
+        }
+        if (t1 > t2) {
+            int t = t1;
+            t1 = t2;
+            t2 = t;
+        }
+
+        int idx = Arrays.binarySearch(this.partners[t1], t2);
+        if (idx < 0) {
+            return 0;
+        }
+        return this.values[t1][idx];
+    }
+
+    /**
+     * @return the number of stored term pairs.
+     */
+    public long getNumberOfEntries()
+    {
+        long entries = 0;
+        for (int[] row : this.partners) {
+            if (row != null) {
+                entries += row.length;
+            }
+        }
+        return entries;
+    }
+}
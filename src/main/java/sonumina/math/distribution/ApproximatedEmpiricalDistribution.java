@@ -35,12 +35,15 @@
 
 package sonumina.math.distribution;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
  * A simple class representing an approximated empirical probability. The distribution is approximated using equidistant
- * bins.
+ * bins. Instances are immutable and therefore can be shared among threads.
  *
  * @author Sebastian Bauer
  */
@@ -48,13 +51,13 @@ public class ApproximatedEmpiricalDistribution implements IDistribution, Seriali
 {
     private static final long serialVersionUID = 1L;
 
-    private double min;
+    private final double min;
 
-    private double max;
+    private final double max;
 
-    private int numberOfBins;
+    private final int numberOfBins;
 
-    private int[] cumCounts;
+    private final int[] cumCounts;
 
     public ApproximatedEmpiricalDistribution(double[] newObservations, int newNumberOfBins)
     {
@@ -86,6 +89,48 @@ public ApproximatedEmpiricalDistribution(double[] newObservations, int newNumber
         this.cumCounts = counts;
     }
 
+    private ApproximatedEmpiricalDistribution(double min, double max, int numberOfBins, int[] cumCounts)
+    {
+        this.min = min;
+        this.max = max;
+        this.numberOfBins = numberOfBins;
+        this.cumCounts = cumCounts;
+    }
+
+    /**
+     * Writes a binary representation of the distribution.
+     *
+     * @param out
+     * @throws IOException
+     * @see #read(ByteBuffer)
+     */
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeDouble(this.min);
+        out.writeDouble(this.max);
+        out.writeInt(this.numberOfBins);
+        for (int cumCount : this.cumCounts) {
+            out.writeInt(cumCount);
+        }
+    }
+
+    /**
+     * Reads a distribution from its binary representation starting at the current position of the buffer.
+     *
+     * @param in
+     * @return
+     * @see #write(DataOutput)
+     */
+    public static ApproximatedEmpiricalDistribution read(ByteBuffer in)
+    {
+        double min = in.getDouble();
+        double max = in.getDouble();
+        int numberOfBins = in.getInt();
+        int[] cumCounts = new int[numberOfBins];
+        in.asIntBuffer().get(cumCounts);
+        return new ApproximatedEmpiricalDistribution(min, max, numberOfBins, cumCounts);
+    }
+
     private int findBin(double observation)
     {
         double binDbl = (observation - this.min) / (this.max - this.min) * this.numberOfBins;
@@ -113,6 +158,7 @@ public double cdf(double x, boolean lowerTail)
      * @param x
      * @return
      */
+    @Override
     public double prob(double x)
     {
         int bin = findBin(x);
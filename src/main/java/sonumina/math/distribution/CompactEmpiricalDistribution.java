@@ -0,0 +1,256 @@
+/* Copyright (c) 2010-2012 Sebastian Bauer
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ *
+ * * Neither the name of Sebastian Bauer nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE.  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sonumina.math.distribution;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A compact representation of an empirical probability distribution. Only a subset of the sorted observations is kept
+ * (the knots). Knots are chosen such that between two consecutive knots at most max(1, relativeError * m)
+ * observations are skipped, where m is the number of observations that are larger than the lower knot. Hence, the
+ * upper tail P(X >= x) is approximated with a relative error that is bounded by relativeError, which is what matters
+ * for p values. The number of knots grows only logarithmically with the number of observations. Ties are preserved,
+ * i.e., for observations that are knots the exact point mass is known.
+ *
+ * @author Sebastian Bauer
+ */
+public class CompactEmpiricalDistribution implements IDistribution, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /** The values of the knots in ascending order */
+    private final double[] values;
+
+    /** The number of observations that are less than or equal to the value of the corresponding knot */
+    private final int[] cumCounts;
+
+    /** The number of observations that are equal to the value of the corresponding knot */
+    private final int[] counts;
+
+    /** The total number of observations */
+    private final int numberOfObservations;
+
+    /**
+     * Constructs the compact distribution.
+     *
+     * @param newObservations the observations.
+     * @param relativeError the relative error of the upper tail probability that is accepted.
+     */
+    public CompactEmpiricalDistribution(double[] newObservations, double relativeError)
+    {
+        if (newObservations.length == 0) {
+            throw new IllegalArgumentException("At least one observation is required");
+        }
+
+        double[] observations = Arrays.copyOf(newObservations, newObservations.length);
+        Arrays.sort(observations);
+
+        int n = observations.length;
+
+        double[] knotValues = new double[16];
+        int[] knotCumCounts = new int[16];
+        int[] knotCounts = new int[16];
+        int numberOfKnots = 0;
+
+        /* Number of observations less than or equal to the last knot */
+        int lastKnotCumCount = 0;
+
+        int i = 0;
+        while (i < n) {
+            /* Determine the run of equal observations starting at i */
+            int j = i + 1;
+            while (j < n && observations[j] == observations[i]) {
+                j++;
+            }
+
+            /* Add this value as a knot if the next value would be too far away from the last knot */
+            int maxSkip = Math.max(1, (int) (relativeError * (n - lastKnotCumCount)));
+            int nextCumCount = j;
+            if (j < n) {
+                int k = j + 1;
+                while (k < n && observations[k] == observations[j]) {
+                    k++;
+                }
+                nextCumCount = k;
+            }
+
+            if (j == n || i == 0 || nextCumCount - lastKnotCumCount > maxSkip) {
+                if (numberOfKnots == knotValues.length) {
+                    knotValues = Arrays.copyOf(knotValues, numberOfKnots * 2);
+                    knotCumCounts = Arrays.copyOf(knotCumCounts, numberOfKnots * 2);
+                    knotCounts = Arrays.copyOf(knotCounts, numberOfKnots * 2);
+                }
+                knotValues[numberOfKnots] = observations[i];
+                knotCumCounts[numberOfKnots] = j;
+                knotCounts[numberOfKnots] = j - i;
+                numberOfKnots++;
+                lastKnotCumCount = j;
+            }
+            i = j;
+        }
+
+        this.values = Arrays.copyOf(knotValues, numberOfKnots);
+        this.cumCounts = Arrays.copyOf(knotCumCounts, numberOfKnots);
+        this.counts = Arrays.copyOf(knotCounts, numberOfKnots);
+        this.numberOfObservations = n;
+    }
+
+    private CompactEmpiricalDistribution(double[] values, int[] cumCounts, int[] counts, int numberOfObservations)
+    {
+        this.values = values;
+        this.cumCounts = cumCounts;
+        this.counts = counts;
+        this.numberOfObservations = numberOfObservations;
+    }
+
+    /**
+     * Writes a binary representation of the distribution.
+     *
+     * @param out
+     * @throws IOException
+     * @see #read(ByteBuffer)
+     */
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeInt(this.numberOfObservations);
+        out.writeInt(this.values.length);
+        for (double value : this.values) {
+            out.writeDouble(value);
+        }
+        for (int cumCount : this.cumCounts) {
+            out.writeInt(cumCount);
+        }
+        for (int count : this.counts) {
+            out.writeInt(count);
+        }
+    }
+
+    /**
+     * Reads a distribution from its binary representation starting at the current position of the buffer. The
+     * position of the buffer is advanced accordingly.
+     *
+     * @param in
+     * @return
+     * @see #write(DataOutput)
+     */
+    public static CompactEmpiricalDistribution read(ByteBuffer in)
+    {
+        int numberOfObservations = in.getInt();
+        int numberOfKnots = in.getInt();
+        double[] values = new double[numberOfKnots];
+        int[] cumCounts = new int[numberOfKnots];
+        int[] counts = new int[numberOfKnots];
+        for (int i = 0; i < numberOfKnots; i++) {
+            values[i] = in.getDouble();
+        }
+        for (int i = 0; i < numberOfKnots; i++) {
+            cumCounts[i] = in.getInt();
+        }
+        for (int i = 0; i < numberOfKnots; i++) {
+            counts[i] = in.getInt();
+        }
+        return new CompactEmpiricalDistribution(values, cumCounts, counts, numberOfObservations);
+    }
+
+    /**
+     * Returns the index of the largest knot whose value is less than or equal to x or -1 if no such knot exists.
+     *
+     * @param x
+     * @return
+     */
+    private int findKnot(double x)
+    {
+        int idx = Arrays.binarySearch(this.values, x);
+        if (idx < 0) {
+            idx = -idx - 2;
+        }
+        return idx;
+    }
+
+    @Override
+    public double cdf(double x, boolean upperTail)
+    {
+        int idx = findKnot(x);
+        if (idx < 0) {
+            return 0;
+        }
+        return this.cumCounts[idx] / (double) this.numberOfObservations;
+    }
+
+    @Override
+    public double prob(double x)
+    {
+        int idx = findKnot(x);
+        if (idx < 0 || this.values[idx] != x) {
+            return 0;
+        }
+        return this.counts[idx] / (double) this.numberOfObservations;
+    }
+
+    /**
+     * Returns the number of knots that represent the distribution.
+     *
+     * @return
+     */
+    public int getNumberOfKnots()
+    {
+        return this.values.length;
+    }
+
+    /**
+     * Returns the maximum value.
+     *
+     * @return
+     */
+    public double getMax()
+    {
+        return this.values[this.values.length - 1];
+    }
+
+    /**
+     * Returns the minimum value.
+     *
+     * @return
+     */
+    public double getMin()
+    {
+        return this.values[0];
+    }
+}
@@ -152,4 +152,34 @@ public double cdf(double x, boolean upperTail)
             return this.cumCounts[idx] / (double) this.cumCounts[this.cumCounts.length - 1];
         }
     }
+
+    /**
+     * Returns for x P(X = x).
+     *
+     * @param x
+     * @return
+     */
+    @Override
+    public double prob(double x)
+    {
+        int idx = Arrays.binarySearch(this.observations, x);
+        if (idx < 0) {
+            return 0;
+        }
+
+        if (this.cumCounts == null) {
+            int from = idx;
+            while (from > 0 && this.observations[from - 1] == x) {
+                from--;
+            }
+            int to = idx;
+            while (to < this.observations.length && this.observations[to] == x) {
+                to++;
+            }
+            return (to - from) / (double) this.observations.length;
+        } else {
+            int lower = idx > 0 ? this.cumCounts[idx - 1] : 0;
+            return (this.cumCounts[idx] - lower) / (double) this.cumCounts[this.cumCounts.length - 1];
+        }
+    }
 }
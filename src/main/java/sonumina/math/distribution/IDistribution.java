@@ -38,4 +38,12 @@
 public interface IDistribution
 {
     public double cdf(double x, boolean upperTail);
+
+    /**
+     * Returns for x P(X = x) which is not necessarily 0 for distributions with discrete parts.
+     *
+     * @param x
+     * @return
+     */
+    public double prob(double x);
 }
@@ -0,0 +1,174 @@
+package sonumina.boqa;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import sonumina.boqa.calculation.BOQA;
+import sonumina.boqa.calculation.Observations;
+import sonumina.boqa.tests.InternalDatafiles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PatientPipelineTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int PATIENTS_PER_FILE = 200;
+
+    private static void setup(BOQA boqa) throws Exception
+    {
+        InternalDatafiles data = new InternalDatafiles();
+        boqa.setConsiderFrequenciesOnly(false);
+        boqa.setCacheScoreDistribution(false);
+        boqa.setPrecalculateItemMaxs(false);
+        boqa.setPrecalculateScoreDistribution(false);
+        boqa.setup(data.graph, data.assoc);
+    }
+
+    private File write(File dir, String name, List<String> lines) throws IOException
+    {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static List<String> read(File file) throws IOException
+    {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Counts how often each key occurs.
+     */
+    private static Map<String, Integer> count(List<String> keys)
+    {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String key : keys) {
+            Integer c = counts.get(key);
+            counts.put(key, c == null ? 1 : c + 1);
+        }
+        return counts;
+    }
+
+    @Test
+    public void testPipeline() throws Exception
+    {
+        BOQA boqa = new BOQA();
+        setup(boqa);
+        int top = Math.min(20, boqa.getNumberOfItems());
+
+        File in = this.folder.newFolder("in");
+        File out = this.folder.newFolder("out");
+
+        String[] queries = new String[] { "GO:0000012,GO:0000014", "GO:0000010", "GO:0000013, GO:0000015" };
+
+        List<String> tsv = new ArrayList<String>();
+        tsv.add("# id\tterms");
+        tsv.add("");
+        List<String> jsonl = new ArrayList<String>();
+        for (int i = 0; i < PATIENTS_PER_FILE; i++) {
+            String terms = queries[i % queries.length];
+            tsv.add("t" + i + "\t" + terms);
+            jsonl.add("{\"id\": \"j" + i + "\", \"terms\": [\"" + terms.replace(",", "\",\"") + "\"]}");
+            if (i == 10) {
+                tsv.add("malformed");
+                jsonl.add("{\"terms\": [\"GO:0000012\"]}");
+                jsonl.add("{\"id\": \"bad\\uZZZZ\", \"terms\": [\"GO:0000012\"]}");
+                jsonl.add("{\"id\": \"truncated\\u00\", \"terms\": [\"GO:0000012\"]}");
+            }
+        }
+        jsonl.add("{\"id\": \"say \\\"hi\\\"\\u0021\", \"terms\": [\"GO:000\\u003012\"]}");
+        jsonl.add("{\"id\": 42, \"terms\": [\"GO:0000012\"]}");
+
+        List<File> files =
+            Arrays.asList(write(in, "batch.tsv", tsv), write(in, "batch.jsonl", jsonl),
+                write(in, "p_hpo.txt", Arrays.asList("GO:0000012,GO:0000014")));
+
+        PatientPipeline pipeline = new PatientPipeline(boqa, out);
+        pipeline.setThreads(2, 2, 3, 2);
+        pipeline.setQueueCapacity(4);
+        assertEquals(2 * PATIENTS_PER_FILE + 3, pipeline.run(files));
+        assertEquals(4, pipeline.getFailed());
+
+        /* Every patient of the TSV file is written exactly once, with the expected best item */
+        List<String> ids = new ArrayList<String>();
+        Map<String, String> best = new HashMap<String, String>();
+        for (String line : read(new File(out, "batch.tsv.results"))) {
+            String[] fields = line.split("\t");
+            assertEquals(3, fields.length);
+            ids.add(fields[0]);
+            if (!best.containsKey(fields[0])) {
+                best.put(fields[0], fields[2]);
+            }
+        }
+        Map<String, Integer> counts = count(ids);
+        assertEquals(PATIENTS_PER_FILE, counts.size());
+        for (int i = 0; i < PATIENTS_PER_FILE; i++) {
+            assertEquals(Integer.valueOf(top), counts.get("t" + i));
+            assertEquals(best.get("t" + (i % queries.length)), best.get("t" + i));
+        }
+
+        /* Every patient of the JSONL file is written exactly once */
+        ids.clear();
+        for (String line : read(new File(out, "batch.jsonl.results"))) {
+            assertTrue(line, line.startsWith("{\"id\":\""));
+            ids.add(line.substring(0, line.indexOf(",\"results\"")));
+            assertEquals(top, line.split("\"marginal\"").length - 1);
+        }
+        counts = count(ids);
+        assertEquals(PATIENTS_PER_FILE + 2, counts.size());
+        for (int i = 0; i < PATIENTS_PER_FILE; i++) {
+            assertEquals(Integer.valueOf(1), counts.get("{\"id\":\"j" + i + "\""));
+        }
+        assertEquals(Integer.valueOf(1), counts.get("{\"id\":\"say \\\"hi\\\"!\""));
+        assertEquals(Integer.valueOf(1), counts.get("{\"id\":\"42\""));
+
+        assertEquals(top, read(new File(out, "p_hpo.txt.results")).size());
+    }
+
+    @Test(timeout = 60000)
+    public void testAbort() throws Exception
+    {
+        BOQA boqa = new BOQA()
+        {
+            @Override
+            public Result assignMarginals(Observations observations, boolean takeFrequenciesIntoAccount,
+                int numThreads)
+            {
+                if (observations.observations[getTermIndex(getOntology().getTerm("GO:0000015"))]) {
+                    throw new OutOfMemoryError("Simulated");
+                }
+                return super.assignMarginals(observations, takeFrequenciesIntoAccount, numThreads);
+            }
+        };
+        setup(boqa);
+
+        List<String> tsv = new ArrayList<String>();
+        for (int i = 0; i < PATIENTS_PER_FILE; i++) {
+            tsv.add("t" + i + "\t" + (i == 50 ? "GO:0000015" : "GO:0000012"));
+        }
+
+        PatientPipeline pipeline = new PatientPipeline(boqa, this.folder.newFolder("out"));
+        pipeline.setThreads(1, 2, 2, 1);
+        pipeline.setQueueCapacity(2);
+        try {
+            pipeline.run(Arrays.asList(write(this.folder.newFolder("in"), "batch.tsv", tsv)));
+            throw new AssertionError("The error has not been rethrown");
+        } catch (OutOfMemoryError e) {
+            assertEquals("Simulated", e.getMessage());
+        }
+    }
+}
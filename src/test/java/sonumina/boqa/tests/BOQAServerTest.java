@@ -0,0 +1,229 @@
+package sonumina.boqa.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import sonumina.boqa.BOQAServer;
+import sonumina.boqa.calculation.BOQA;
+import sonumina.boqa.calculation.Observations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BOQAServerTest
+{
+    private static BOQA boqa;
+
+    private static BOQAServer server;
+
+    private static void setup(BOQA boqa) throws Exception
+    {
+        InternalDatafiles data = new InternalDatafiles();
+        boqa.setConsiderFrequenciesOnly(false);
+        boqa.setCacheScoreDistribution(false);
+        boqa.setPrecalculateItemMaxs(false);
+        boqa.setPrecalculateScoreDistribution(false);
+        boqa.setup(data.graph, data.assoc);
+    }
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        boqa = new BOQA();
+        setup(boqa);
+
+        server = new BOQAServer(boqa);
+        server.setScoreThreads(2);
+        server.setBatchWindow(5);
+        server.setTopItems(3);
+        server.warmup(20, new Random(1));
+        server.start(0);
+    }
+
+    @AfterClass
+    public static void shutdown()
+    {
+        server.stop();
+    }
+
+    private static String request(String method, String path, String body, int expectedCode) throws IOException
+    {
+        HttpURLConnection con =
+            (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+        con.setRequestMethod(method);
+        if (body != null) {
+            con.setDoOutput(true);
+            try (OutputStream out = con.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(expectedCode, con.getResponseCode());
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try (InputStream in = expectedCode < 400 ? con.getInputStream() : con.getErrorStream()) {
+            byte[] buf = new byte[1024];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                response.write(buf, 0, read);
+            }
+        }
+        return new String(response.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the item with the highest marginal for the given terms by scoring them directly.
+     */
+    private static String bestItem(String... terms)
+    {
+        Observations o = new Observations();
+        o.observations = new boolean[boqa.getOntology().getNumberOfTerms()];
+        for (String term : terms) {
+            int id = boqa.getTermIndex(boqa.getOntology().getTerm(term));
+            o.observations[id] = true;
+            boqa.activateAncestors(id, o.observations);
+        }
+        BOQA.Result res = boqa.assignMarginals(o, false, 1);
+
+        int best = 0;
+        for (int i = 1; i < res.size(); i++) {
+            if (res.getMarginal(i) > res.getMarginal(best)) {
+                best = i;
+            }
+        }
+        return boqa.allItemList.get(best).toString();
+    }
+
+    @Test
+    public void testQuery() throws Exception
+    {
+        String expected = "{\"results\":[{\"item\":\"" + bestItem("GO:0000012", "GO:0000014") + "\"";
+
+        String get = request("GET", BOQAServer.QUERY_ENDPOINT + "?terms=GO:0000012,GO:0000014&k=2", null, 200);
+        assertTrue(get, get.startsWith(expected));
+        assertEquals(2, get.split("\"marginal\"").length - 1);
+
+        String post =
+            request("POST", BOQAServer.QUERY_ENDPOINT, "{\"terms\": [\"GO:0000012\", \"GO:0000014\"]}", 200);
+        assertTrue(post, post.startsWith(expected));
+        assertEquals(3, post.split("\"marginal\"").length - 1);
+
+        request("GET", BOQAServer.QUERY_ENDPOINT + "?terms=GO:0000099", null, 400);
+        request("GET", BOQAServer.QUERY_ENDPOINT, null, 400);
+
+        String latency = request("GET", BOQAServer.LATENCY_ENDPOINT, null, 200);
+        assertTrue(latency, latency.contains(BOQAServer.QUERY_ENDPOINT + "\t"));
+    }
+
+    @Test
+    public void testConcurrentQueries() throws Exception
+    {
+        final String[][] queries =
+            new String[][] { { "GO:0000012" }, { "GO:0000010", "GO:0000013" }, { "GO:0000015" } };
+
+        ExecutorService es = Executors.newFixedThreadPool(12);
+        List<Future<BOQAServer.TopItems>> futures = new ArrayList<Future<BOQAServer.TopItems>>();
+        for (int i = 0; i < 60; i++) {
+            final String[] terms = queries[i % queries.length];
+            futures.add(es.submit(new Callable<BOQAServer.TopItems>()
+            {
+                @Override
+                public BOQAServer.TopItems call() throws Exception
+                {
+                    return server.query(Arrays.asList(terms), 5);
+                }
+            }));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            BOQAServer.TopItems top = futures.get(i).get();
+            assertEquals(Math.min(5, boqa.getNumberOfItems()), top.size());
+            assertEquals(bestItem(queries[i % queries.length]), boqa.allItemList.get(top.getItem(0)).toString());
+            for (int j = 1; j < top.size(); j++) {
+                assertTrue(top.getMarginal(j - 1) >= top.getMarginal(j));
+            }
+        }
+        es.shutdown();
+    }
+
+    @Test(timeout = 60000)
+    public void testStop() throws Exception
+    {
+        final CountDownLatch scoring = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        BOQA blocking = new BOQA()
+        {
+            @Override
+            public Result assignMarginals(Observations observations, boolean takeFrequenciesIntoAccount,
+                int numThreads)
+            {
+                scoring.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.assignMarginals(observations, takeFrequenciesIntoAccount, numThreads);
+            }
+        };
+        setup(blocking);
+
+        final BOQAServer stopped = new BOQAServer(blocking);
+        stopped.setScoreThreads(1);
+        stopped.startScoring();
+
+        /* The first query blocks the scorer, the second one waits for the next batch */
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        List<Future<BOQAServer.TopItems>> futures = new ArrayList<Future<BOQAServer.TopItems>>();
+        for (final String term : new String[] { "GO:0000012", "GO:0000010" }) {
+            futures.add(es.submit(new Callable<BOQAServer.TopItems>()
+            {
+                @Override
+                public BOQAServer.TopItems call() throws Exception
+                {
+                    return stopped.query(Arrays.asList(term), 3);
+                }
+            }));
+            scoring.await();
+        }
+
+        stopped.stop();
+        for (Future<BOQAServer.TopItems> f : futures) {
+            try {
+                f.get();
+                fail("Query has been answered after stopping the server");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+
+        try {
+            stopped.query(Arrays.asList("GO:0000012"), 3);
+            fail("Query has been accepted after stopping the server");
+        } catch (IllegalStateException e) {
+        }
+
+        release.countDown();
+        es.shutdown();
+    }
+}
@@ -5,8 +5,11 @@
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.CancellationException;
 
 import org.junit.BeforeClass;
 import org.junit.Ignore;
@@ -31,6 +34,7 @@
 import sonumina.math.graph.SlimDirectedGraphView;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class BOQATest
@@ -128,6 +132,48 @@ public void testMostSpecificTerms()
             boqa.mostSpecificTerms(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14 }));
     }
 
+    @Test
+    public void testChooseTerms()
+    {
+        InternalDatafiles data = new InternalDatafiles();
+        BOQA boqa = new BOQA();
+        boqa.setConsiderFrequenciesOnly(false);
+        boqa.setCacheScoreDistribution(false);
+        boqa.setPrecalculateItemMaxs(false);
+        boqa.setPrecalculateScoreDistribution(false);
+        boqa.setup(data.graph, data.assoc);
+
+        SlimDirectedGraphView<Term> slimGraph = boqa.getSlimGraph();
+        Random rnd = new Random(3);
+        int[] storage = new int[slimGraph.getNumberOfVertices()];
+        for (int i = 0; i < storage.length; i++) {
+            storage[i] = i;
+        }
+
+        for (int size = 1; size <= 6; size++) {
+            int[] chosen = new int[size];
+            for (int t = 0; t < 1000; t++) {
+                boqa.chooseTerms(rnd, size, chosen, storage);
+
+                /* Storage is still a permutation */
+                boolean[] seen = new boolean[storage.length];
+                for (int term : storage) {
+                    assertFalse(seen[term]);
+                    seen[term] = true;
+                }
+
+                /* No chosen term is an ancestor of another one */
+                for (int i = 0; i < size; i++) {
+                    for (int j = 0; j < size; j++) {
+                        if (i != j) {
+                            assertFalse(slimGraph.isDescendant(chosen[i], chosen[j]));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * A helper function to test similarity values of the internal ontology.
      *
@@ -405,7 +451,10 @@ public void testBenchmarkOnInternalOntology() throws InterruptedException, IOExc
 
         Benchmark benchmark = new Benchmark();
         benchmark.setResultBaseName("internal");
+        benchmark.setMeasureLatencies(true);
         benchmark.benchmark(boqa);
+
+        assertTrue(new File("internal_latency.txt").exists());
     }
 
     /**
@@ -458,13 +507,344 @@ public void testVsOldItemMax() throws InterruptedException, IOException
         /* Now the test */
         for (int i = 0; i < micaForItem.length; i++) {
             for (int j = 0; j < micaForItem[i].length; j++) {
-                assertEquals(boqa.terms2IC[micaForItem[i][j]], boqa.resnikTermSim.maxScoreForItem[i][j], 0.00001);
+                assertEquals(boqa.terms2IC[micaForItem[i][j]], boqa.resnikTermSim.maxScoreForItem.get(j, i), 0.00001);
             }
         }
 
         checkHPOSimValues(boqa);
     }
 
+    @Test
+    public void testAdaptivePValues() throws InterruptedException, IOException
+    {
+        final BOQA boqa = new BOQA();
+
+        boqa.setConsiderFrequenciesOnly(false);
+        boqa.setCacheScoreDistribution(false);
+        boqa.setPrecalculateScoreDistribution(false);
+        boqa.setStoreScoreDistriubtion(false);
+        boqa.setPrecalculateItemMaxs(true);
+        boqa.setSizeOfScoreDistribution(20000);
+        boqa.setMaxQuerySizeForCachedDistribution(6);
+        boqa.setSimulationMaxTerms(6);
+        boqa.setup(hpo.graph, hpo.assoc);
+
+        Random rnd = new Random(11);
+        int item = rnd.nextInt(boqa.allItemList.size());
+        Observations obs = boqa.generateObservations(item, rnd);
+
+        Result exact = boqa.resnikScore(obs.observations, true, new Random(3));
+        boqa.setAdaptivePValues(true);
+        Result adaptive = boqa.resnikScore(obs.observations, true, new Random(3));
+
+        long exactDraws = 0;
+        long adaptiveDraws = 0;
+
+        for (int i = 0; i < boqa.allItemList.size(); i++) {
+            assertEquals(exact.getScore(i), adaptive.getScore(i), 0);
+            assertEquals(20000, exact.getDraws(i));
+            assertTrue(adaptive.getDraws(i) <= exact.getDraws(i));
+
+            /* Decision with respect to the significance level must agree unless we are really close */
+            double p = exact.getMarginal(i);
+            if (Math.abs(p - 0.05) > 0.02) {
+                assertEquals(p < 0.05, adaptive.getMarginal(i) < 0.05);
+            }
+
+            exactDraws += exact.getDraws(i);
+            adaptiveDraws += adaptive.getDraws(i);
+        }
+
+        assertTrue(adaptiveDraws * 10 < exactDraws);
+    }
+
+    @Test
+    public void testObservationSimulator()
+    {
+        InternalDatafiles data = new InternalDatafiles();
+        BOQA boqa = new BOQA();
+        boqa.setConsiderFrequenciesOnly(false);
+        boqa.setPrecalculateScoreDistribution(false);
+        boqa.setup(data.graph, data.assoc);
+
+        SlimDirectedGraphView<Term> slimGraph = boqa.getSlimGraph();
+        BOQA.ObservationSimulator simulator = boqa.createObservationSimulator();
+        long[][] hidden = simulator.newBuffers(20);
+        long[][] observations = simulator.newBuffers(20);
+        long[][] single = simulator.newBuffers(1);
+
+        /* Without noise, the observations are the hidden terms */
+        boqa.setSimulationAlpha(0);
+        boqa.setSimulationBeta(0);
+        for (int item = 0; item < boqa.getNumberOfItems(); item++) {
+            simulator.simulate(item, new Random(item), 20, hidden, observations);
+            for (int i = 0; i < 20; i++) {
+                assertTrue(Arrays.equals(hidden[i], observations[i]));
+            }
+        }
+
+        /* Simulating in batches is the same as simulating one after another */
+        boqa.setSimulationAlpha(0.3);
+        boqa.setSimulationBeta(0.3);
+        for (int item = 0; item < boqa.getNumberOfItems(); item++) {
+            simulator.simulate(item, new Random(item), 20, null, observations);
+
+            Random rnd = new Random(item);
+            for (int i = 0; i < 20; i++) {
+                int numObserved = simulator.simulate(item, rnd, null, single[0]);
+                assertTrue(Arrays.equals(single[0], observations[i]));
+
+                /* The observations obey the true path rule */
+                int count = 0;
+                for (int t = 0; t < slimGraph.getNumberOfVertices(); t++) {
+                    if ((observations[i][t >>> 6] & (1L << t)) != 0) {
+                        count++;
+                        for (int a : slimGraph.vertexAncestors[t]) {
+                            assertTrue((observations[i][a >>> 6] & (1L << a)) != 0);
+                        }
+                    }
+                }
+                assertEquals(numObserved, count);
+            }
+        }
+
+        /*
+         * The noise rates are those of the model. A hidden term is observed as negative only by its own false negative
+         * if all of its ancestors are observed (propagated case) or none of its descendants is hidden. A negative term
+         * is observed as positive only by its own false positive if it has no descendants (propagated case) or if all
+         * of its ancestors are hidden.
+         */
+        int numSimulations = 2000;
+        boqa.setSimulationAlpha(0);
+        boqa.setSimulationBeta(0.3);
+        int trials = 0;
+        int falseNegatives = 0;
+        for (int item = 0; item < boqa.getNumberOfItems(); item++) {
+            Random rnd = new Random(item);
+            for (int i = 0; i < numSimulations; i++) {
+                simulator.simulate(item, rnd, single[0], observations[0]);
+                for (int t = 0; t < slimGraph.getNumberOfVertices(); t++) {
+                    if (!isSet(single[0], t)) {
+                        continue;
+                    }
+                    boolean determined = true;
+                    if (boqa.areFalseNegativesPropagated()) {
+                        for (int a : slimGraph.vertexAncestors[t]) {
+                            determined &= a == t || isSet(observations[0], a);
+                        }
+                    } else {
+                        for (int d : slimGraph.vertexDescendants[t]) {
+                            determined &= d == t || !isSet(single[0], d);
+                        }
+                    }
+                    if (determined) {
+                        trials++;
+                        if (!isSet(observations[0], t)) {
+                            falseNegatives++;
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue(trials > 10000);
+        assertEquals(0.3, (double) falseNegatives / trials, 0.02);
+
+        boqa.setSimulationAlpha(0.1);
+        boqa.setSimulationBeta(0);
+        trials = 0;
+        int falsePositives = 0;
+        for (int item = 0; item < boqa.getNumberOfItems(); item++) {
+            Random rnd = new Random(item);
+            for (int i = 0; i < numSimulations; i++) {
+                simulator.simulate(item, rnd, single[0], observations[0]);
+                for (int t = 0; t < slimGraph.getNumberOfVertices(); t++) {
+                    if (isSet(single[0], t)) {
+                        continue;
+                    }
+                    boolean determined = true;
+                    if (boqa.areFalsePositivesPropagated()) {
+                        for (int d : slimGraph.vertexDescendants[t]) {
+                            determined &= d == t;
+                        }
+                    } else {
+                        for (int a : slimGraph.vertexAncestors[t]) {
+                            determined &= a == t || isSet(single[0], a);
+                        }
+                    }
+                    if (determined) {
+                        trials++;
+                        if (isSet(observations[0], t)) {
+                            falsePositives++;
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue(trials > 10000);
+        assertEquals(0.1, (double) falsePositives / trials, 0.02);
+    }
+
+    private static boolean isSet(long[] bits, int t)
+    {
+        return (bits[t >>> 6] & (1L << t)) != 0;
+    }
+
+    @Test
+    public void testPopcountScoring()
+    {
+        InternalDatafiles data = new InternalDatafiles();
+        BOQA boqa = new BOQA();
+        boqa.setConsiderFrequenciesOnly(false);
+        boqa.setPrecalculateScoreDistribution(false);
+        boqa.setup(data.graph, data.assoc);
+
+        for (int item = 0; item < boqa.getNumberOfItems(); item++) {
+            Observations obs = boqa.generateObservations(item, new Random(item));
+            for (boolean frequencies : new boolean[] { false, true }) {
+                boqa.setPopcountScoring(false);
+                Result diff = boqa.assignMarginals(obs, frequencies, 1);
+                Result diffThreaded = boqa.assignMarginals(obs, frequencies, 3);
+                boqa.setPopcountScoring(true);
+                Result popcount = boqa.assignMarginals(obs, frequencies, 1);
+                Result popcountThreaded = boqa.assignMarginals(obs, frequencies, 3);
+
+                for (int i = 0; i < boqa.getNumberOfItems(); i++) {
+                    assertEquals(diff.getScore(i), popcount.getScore(i), 1e-9);
+                    assertEquals(diff.getScore(i), diffThreaded.getScore(i), 1e-9);
+                    assertEquals(diff.getScore(i), popcountThreaded.getScore(i), 1e-9);
+                    assertEquals(diff.getMarginal(i), popcount.getMarginal(i), 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSetupProgressAndCancellation()
+    {
+        InternalDatafiles data = new InternalDatafiles();
+
+        final HashMap<String, Integer> done = new HashMap<String, Integer>();
+        final HashMap<String, Integer> total = new HashMap<String, Integer>();
+
+        BOQA boqa = new BOQA();
+        boqa.setConsiderFrequenciesOnly(false);
+        boqa.setSizeOfScoreDistribution(1000);
+        boqa.setStoreScoreDistriubtion(false);
+        boqa.setTryLoadingScoreDistribution(false);
+        boqa.setPrecalculateJaccard(true);
+        boqa.setMaxQuerySizeForCachedDistribution(3);
+        boqa.setSetupProgress(new BOQA.ISetupProgress()
+        {
+            @Override
+            public void progress(String step, int d, int t)
+            {
+                synchronized (done) {
+                    Integer old = done.get(step);
+                    done.put(step, Math.max(d, old != null ? old : 0));
+                    total.put(step, t);
+                }
+            }
+        });
+        boqa.setup(data.graph, data.assoc);
+
+        assertTrue(done.containsKey("Jaccard"));
+        assertTrue(done.containsKey("max ICs"));
+        assertTrue(done.containsKey("item maxs for resnik"));
+        assertTrue(done.containsKey("random queries"));
+        assertTrue(done.containsKey("score distribution for jc"));
+        for (String step : done.keySet()) {
+            assertEquals(total.get(step), done.get(step));
+        }
+
+        /* Cancel as soon as the first progress is reported */
+        final BOQA cancelled = new BOQA();
+        cancelled.setConsiderFrequenciesOnly(false);
+        cancelled.setSizeOfScoreDistribution(1000);
+        cancelled.setStoreScoreDistriubtion(false);
+        cancelled.setTryLoadingScoreDistribution(false);
+        cancelled.setSetupProgress(new BOQA.ISetupProgress()
+        {
+            @Override
+            public void progress(String step, int d, int t)
+            {
+                cancelled.cancelSetup();
+            }
+        });
+        try {
+            cancelled.setup(data.graph, data.assoc);
+            assertTrue("Setup should have been cancelled", false);
+        } catch (CancellationException e) {
+        }
+    }
+
+    @Test
+    public void testCompactScoreDistribution()
+    {
+        InternalDatafiles data = new InternalDatafiles();
+        BOQA[] boqas = new BOQA[2];
+
+        for (int i = 0; i < boqas.length; i++) {
+            boqas[i] = new BOQA();
+            boqas[i].setConsiderFrequenciesOnly(false);
+            boqas[i].setSizeOfScoreDistribution(20000);
+            boqas[i].setStoreScoreDistriubtion(false);
+            boqas[i].setTryLoadingScoreDistribution(false);
+            boqas[i].setMaxQuerySizeForCachedDistribution(4);
+            /* Reduced precision turns ties of scores into near ties, which the bins of the histogram merge */
+            boqas[i].setPrecalculateItemMaxs(false);
+            boqas[i].setCompactScoreDistribution(i == 1);
+            boqas[i].setup(data.graph, data.assoc);
+        }
+
+        for (int item = 0; item < boqas[0].allItemList.size(); item++) {
+            Observations obs = boqas[0].generateObservations(item, new Random(item));
+
+            Result approximated = boqas[0].resnikScore(obs.observations, true, new Random(3));
+            Result compact = boqas[1].resnikScore(obs.observations, true, new Random(3));
+
+            for (int i = 0; i < boqas[0].allItemList.size(); i++) {
+                assertEquals(approximated.getScore(i), compact.getScore(i), 0);
+                assertEquals(approximated.getMarginal(i), compact.getMarginal(i), 0.01);
+            }
+        }
+    }
+
+    @Test
+    public void testStoredScoreDistribution()
+    {
+        InternalDatafiles data = new InternalDatafiles();
+        BOQA[] boqas = new BOQA[2];
+
+        /* The first one calculates and stores the distribution, the second one maps it */
+        for (int i = 0; i < boqas.length; i++) {
+            boqas[i] = new BOQA();
+            boqas[i].setConsiderFrequenciesOnly(false);
+            boqas[i].setSizeOfScoreDistribution(3000);
+            boqas[i].setStoreScoreDistriubtion(i == 0);
+            boqas[i].setTryLoadingScoreDistribution(i == 1);
+            boqas[i].setMaxQuerySizeForCachedDistribution(4);
+            boqas[i].setup(data.graph, data.assoc);
+        }
+
+        for (String name : new String[] { "resnik", "lin", "jc" }) {
+            File file =
+                new File("scoreDistributions-" + name + "-" + boqas[0].allItemList.size() + "-false-3000.bin");
+            assertTrue(file.exists());
+            file.deleteOnExit();
+        }
+
+        for (int item = 0; item < boqas[0].allItemList.size(); item++) {
+            Observations obs = boqas[0].generateObservations(item, new Random(item));
+
+            Result calculated = boqas[0].jcScore(obs.observations, true, new Random(3));
+            Result loaded = boqas[1].jcScore(obs.observations, true, new Random(3));
+
+            for (int i = 0; i < boqas[0].allItemList.size(); i++) {
+                assertEquals(calculated.getMarginal(i), loaded.getMarginal(i), 0);
+            }
+        }
+    }
+
     @Test
     public void testMostSpecificOnHPO() throws InterruptedException, IOException
     {
@@ -0,0 +1,40 @@
+package sonumina.boqa.tests;
+
+import org.junit.Test;
+
+import ontologizer.types.ByteString;
+import sonumina.boqa.calculation.FrequencyParser;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrequencyParserTest
+{
+    @Test
+    public void testParse()
+    {
+        assertEquals(1.0, FrequencyParser.parse(null), 1e-10);
+        assertEquals(1.0, FrequencyParser.parse(""), 1e-10);
+        assertEquals(0.25, FrequencyParser.parse("25%"), 1e-10);
+        assertEquals(0.125, FrequencyParser.parse("12.5 %"), 1e-10);
+        assertEquals(3 / 7.0, FrequencyParser.parse("3/7"), 1e-10);
+        assertEquals(0.01, FrequencyParser.parse("Very rare"), 1e-10);
+        assertEquals(0.33, FrequencyParser.parse("frequent"), 1e-10);
+        assertEquals(0.9, FrequencyParser.parse("HALLMARK"), 1e-10);
+        assertEquals(1.0, FrequencyParser.parse("obligate"), 1e-10);
+        assertEquals(1.0, FrequencyParser.parse("unknown"), 1e-10);
+    }
+
+    @Test
+    public void testRemembersParsedStrings()
+    {
+        FrequencyParser parser = new FrequencyParser();
+        assertEquals(1.0, parser.get(null), 1e-10);
+        assertEquals(0, parser.size());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0.75, parser.get(new ByteString("common")), 1e-10);
+            assertEquals(0.5, parser.get(new ByteString("1/2")), 1e-10);
+        }
+        assertEquals(2, parser.size());
+    }
+}
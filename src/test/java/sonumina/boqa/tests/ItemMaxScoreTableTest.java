@@ -0,0 +1,97 @@
+package sonumina.boqa.tests;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import sonumina.boqa.calculation.ItemMaxScoreTable;
+import sonumina.boqa.calculation.ItemMaxScoreTable.Precision;
+
+import static org.junit.Assert.assertEquals;
+
+public class ItemMaxScoreTableTest
+{
+    private void checkTable(Precision precision, boolean mapped, double tolerance) throws IOException
+    {
+        Random rnd = new Random(4);
+        int numberOfTerms = 50;
+        int numberOfItems = 300;
+
+        double[][] values = new double[numberOfTerms][numberOfItems];
+        ItemMaxScoreTable table = new ItemMaxScoreTable(numberOfTerms, numberOfItems, precision, mapped);
+
+        for (int t = 0; t < numberOfTerms; t++) {
+            for (int i = 0; i < numberOfItems; i++) {
+                values[t][i] = rnd.nextDouble() * 8;
+            }
+            table.setRow(t, values[t]);
+        }
+
+        for (int t = 0; t < numberOfTerms; t++) {
+            for (int i = 0; i < numberOfItems; i++) {
+                assertEquals(values[t][i], table.get(t, i), tolerance);
+            }
+        }
+
+        /* Summing up rows must give the same values as summing up single values */
+        int[] query = new int[] { 3, 17, 42 };
+        double[] scores = new double[numberOfItems];
+        for (int t : query) {
+            table.addRow(t, scores, 10, 200);
+        }
+
+        for (int i = 0; i < numberOfItems; i++) {
+            double expected = 0;
+            if (i >= 10 && i < 200) {
+                for (int t : query) {
+                    expected += table.get(t, i);
+                }
+            }
+            assertEquals(expected, scores[i], 0);
+        }
+    }
+
+    @Test
+    public void testFloat() throws IOException
+    {
+        checkTable(Precision.FLOAT, false, 1e-6);
+    }
+
+    @Test
+    public void testQuantized() throws IOException
+    {
+        checkTable(Precision.QUANTIZED, false, 8.0 / 131070 + 1e-12);
+    }
+
+    @Test
+    public void testQuantizedInfinite() throws IOException
+    {
+        ItemMaxScoreTable table = new ItemMaxScoreTable(2, 4, Precision.QUANTIZED, false);
+        table.setRow(0, new double[] { Double.NEGATIVE_INFINITY, 1, 3, Double.POSITIVE_INFINITY });
+        table.setRow(1, new double[] { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY });
+
+        assertEquals(1, table.get(0, 0), 0);
+        assertEquals(1, table.get(0, 1), 0);
+        assertEquals(3, table.get(0, 2), 1e-12);
+        assertEquals(3, table.get(0, 3), 1e-12);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0, table.get(1, i), 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testQuantizedNaN() throws IOException
+    {
+        ItemMaxScoreTable table = new ItemMaxScoreTable(1, 2, Precision.QUANTIZED, false);
+        table.setRow(0, new double[] { 1, Double.NaN });
+    }
+
+    @Test
+    public void testMapped() throws IOException
+    {
+        checkTable(Precision.FLOAT, true, 1e-6);
+        checkTable(Precision.QUANTIZED, true, 8.0 / 131070 + 1e-12);
+    }
+}
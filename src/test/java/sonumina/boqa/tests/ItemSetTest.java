@@ -0,0 +1,65 @@
+package sonumina.boqa.tests;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import sonumina.boqa.calculation.ItemSet;
+
+import static org.junit.Assert.assertEquals;
+
+public class ItemSetTest
+{
+    private int[] toArray(TreeSet<Integer> set)
+    {
+        int[] array = new int[set.size()];
+        int i = 0;
+        for (int item : set) {
+            array[i++] = item;
+        }
+        return array;
+    }
+
+    @Test
+    public void testAgainstTreeSet()
+    {
+        Random rnd = new Random(5);
+        int numberOfItems = 1000;
+
+        /* Densities that lead to sparse as well as to dense representations */
+        double[] densities = new double[] { 0.001, 0.01, 0.03, 0.1, 0.5, 1 };
+
+        for (double d1 : densities) {
+            for (double d2 : densities) {
+                TreeSet<Integer> s1 = new TreeSet<Integer>();
+                TreeSet<Integer> s2 = new TreeSet<Integer>();
+                for (int i = 0; i < numberOfItems; i++) {
+                    if (rnd.nextDouble() < d1) {
+                        s1.add(i);
+                    }
+                    if (rnd.nextDouble() < d2) {
+                        s2.add(i);
+                    }
+                }
+
+                ItemSet is1 = ItemSet.create(toArray(s1), numberOfItems);
+                ItemSet is2 = ItemSet.create(toArray(s2), numberOfItems);
+
+                TreeSet<Integer> intersection = new TreeSet<Integer>(s1);
+                intersection.retainAll(s2);
+                TreeSet<Integer> union = new TreeSet<Integer>(s1);
+                union.addAll(s2);
+
+                assertEquals(s1.size(), is1.cardinality());
+                assertEquals(intersection.size(), is1.intersectionSize(is2));
+                assertEquals(intersection.size(), is2.intersectionSize(is1));
+                assertEquals(union.size(), is1.unionSize(is2));
+
+                for (int i = 0; i < numberOfItems; i++) {
+                    assertEquals(s1.contains(i), is1.contains(i));
+                }
+            }
+        }
+    }
+}
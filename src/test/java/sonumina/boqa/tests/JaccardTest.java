@@ -54,4 +54,24 @@ public void testJaccardPrecalculated()
         testJaccardWithBoqa(boqa);
     }
 
+    @Test
+    public void testJaccardPrecalculatedMatchesOnDemand()
+    {
+        InternalDatafiles data = new InternalDatafiles();
+        BOQA[] boqas = new BOQA[2];
+        for (int i = 0; i < boqas.length; i++) {
+            boqas[i] = new BOQA();
+            boqas[i].setConsiderFrequenciesOnly(false);
+            boqas[i].setPrecalculateScoreDistribution(false);
+            boqas[i].setPrecalculateJaccard(i == 1);
+            boqas[i].setup(data.graph, data.assoc);
+        }
+
+        int numberOfTerms = boqas[0].getSlimGraph().getNumberOfVertices();
+        for (int t1 = 0; t1 < numberOfTerms; t1++) {
+            for (int t2 = 0; t2 < numberOfTerms; t2++) {
+                Assert.assertEquals(boqas[0].jaccard(t1, t2), boqas[1].jaccard(t1, t2), 1e-6);
+            }
+        }
+    }
 }
@@ -0,0 +1,56 @@
+package sonumina.boqa.tests;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import sonumina.boqa.benchmark.LatencyHistogram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest
+{
+    @Test
+    public void testSmallValuesAreExact()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getValueAtPercentile(50));
+
+        for (int i = 1; i <= 100; i++) {
+            h.record(i);
+        }
+        assertEquals(100, h.getCount());
+        assertEquals(100, h.getMax());
+        assertEquals(50.5, h.getMean(), 1e-10);
+        assertEquals(50, h.getValueAtPercentile(50));
+        assertEquals(90, h.getValueAtPercentile(90));
+        assertEquals(99, h.getValueAtPercentile(99));
+        assertEquals(100, h.getValueAtPercentile(100));
+        assertEquals(1, h.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void testRelativeError()
+    {
+        Random rnd = new Random(5);
+        LatencyHistogram h = new LatencyHistogram();
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            /* Log-uniformly distributed between 1 microsecond and 10 seconds */
+            values[i] = (long) Math.pow(10, 3 + 7 * rnd.nextDouble());
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double p : new double[] { 50, 90, 99, 99.9 }) {
+            long expected = values[(int) Math.ceil(p / 100 * values.length) - 1];
+            long actual = h.getValueAtPercentile(p);
+            assertTrue(actual >= expected);
+            assertTrue(actual <= expected * 1.01);
+        }
+        assertEquals(values[values.length - 1], h.getMax());
+        assertEquals(values[values.length - 1], h.getValueAtPercentile(100));
+    }
+}
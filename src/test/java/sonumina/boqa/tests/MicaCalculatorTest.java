@@ -0,0 +1,83 @@
+package sonumina.boqa.tests;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import sonumina.boqa.calculation.MicaCalculator;
+
+import static org.junit.Assert.assertEquals;
+
+public class MicaCalculatorTest
+{
+    /**
+     * The reference implementation, i.e., the first ancestor of the term with the lower index that has maximal IC and
+     * is an ancestor of the other term.
+     */
+    private int bruteForceMica(int[][] term2Ancestors, double[] terms2IC, int t1, int t2)
+    {
+        int[] ancestorsA = term2Ancestors[Math.min(t1, t2)];
+        int[] ancestorsB = term2Ancestors[Math.max(t1, t2)];
+
+        int bestTerm = -1;
+        double bestIC = Double.NEGATIVE_INFINITY;
+        for (int term : ancestorsA) {
+            for (int element : ancestorsB) {
+                if (term == element && terms2IC[term] > bestIC) {
+                    bestIC = terms2IC[term];
+                    bestTerm = term;
+                }
+            }
+        }
+        return bestTerm;
+    }
+
+    @Test
+    public void testRandomDAG()
+    {
+        Random rnd = new Random(11);
+        int numberOfTerms = 300;
+
+        /* Each term has up to three parents, all with lower indices; term 0 is the root */
+        int[][] term2Ancestors = new int[numberOfTerms][];
+        term2Ancestors[0] = new int[] { 0 };
+        for (int t = 1; t < numberOfTerms; t++) {
+            TreeSet<Integer> ancestors = new TreeSet<Integer>();
+            ancestors.add(t);
+            int numberOfParents = 1 + rnd.nextInt(3);
+            for (int p = 0; p < numberOfParents; p++) {
+                for (int a : term2Ancestors[rnd.nextInt(t)]) {
+                    ancestors.add(a);
+                }
+            }
+            term2Ancestors[t] = new int[ancestors.size()];
+            int i = 0;
+            for (int a : ancestors.descendingSet()) {
+                term2Ancestors[t][i++] = a;
+            }
+        }
+
+        /* Coarse ICs that don't decrease along the paths so that ties occur */
+        double[] terms2IC = new double[numberOfTerms];
+        for (int t = 1; t < numberOfTerms; t++) {
+            for (int a : term2Ancestors[t]) {
+                terms2IC[t] = Math.max(terms2IC[t], terms2IC[a]);
+            }
+            terms2IC[t] += rnd.nextInt(2);
+        }
+
+        MicaCalculator uncached = new MicaCalculator(term2Ancestors, terms2IC, 0);
+        MicaCalculator cached = new MicaCalculator(term2Ancestors, terms2IC, 64);
+
+        for (int t1 = 0; t1 < numberOfTerms; t1++) {
+            for (int t2 = 0; t2 < numberOfTerms; t2++) {
+                int expected = bruteForceMica(term2Ancestors, terms2IC, t1, t2);
+                assertEquals(expected, uncached.calculate(t1, t2));
+                assertEquals(expected, uncached.get(t1, t2));
+                assertEquals(expected, cached.get(t1, t2));
+                assertEquals(expected, cached.get(t2, t1));
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package sonumina.boqa.tests;
+
+import org.junit.Test;
+
+import sonumina.boqa.calculation.RandomStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RandomStreamTest
+{
+    @Test
+    public void testReproducible()
+    {
+        RandomStream a = new RandomStream(9);
+        RandomStream b = new RandomStream(9);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(a.nextLong(), b.nextLong());
+            assertEquals(a.nextInt(17), b.nextInt(17));
+            assertEquals(a.nextDouble(), b.nextDouble(), 0);
+        }
+    }
+
+    @Test
+    public void testSubstreamsMatchSplits()
+    {
+        RandomStream parent = new RandomStream(42);
+        RandomStream splitting = new RandomStream(42);
+
+        for (int index = 0; index < 10; index++) {
+            RandomStream substream = parent.substream(index);
+            RandomStream split = splitting.split();
+            for (int i = 0; i < 100; i++) {
+                assertEquals(split.nextLong(), substream.nextLong());
+            }
+        }
+
+        /* The parent is not advanced by substream() */
+        assertEquals(new RandomStream(42).nextLong(), parent.nextLong());
+    }
+
+    @Test
+    public void testBounds()
+    {
+        RandomStream rnd = new RandomStream(3);
+        int[] counts = new int[7];
+        for (int i = 0; i < 70000; i++) {
+            counts[rnd.nextInt(7)]++;
+
+            double d = rnd.nextDouble();
+            assertTrue(d >= 0 && d < 1);
+
+            int p = rnd.nextInt(16);
+            assertTrue(p >= 0 && p < 16);
+        }
+
+        for (int count : counts) {
+            assertTrue(Math.abs(count - 10000) < 500);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBound()
+    {
+        new RandomStream(3).nextInt(0);
+    }
+}
@@ -0,0 +1,64 @@
+package sonumina.math.distribution;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompactEmpiricalDistributionTest
+{
+    @Test
+    public void testExact()
+    {
+        double[] obs = new double[] { 1, 1, 1.5, 2, 2.5, 3, 3.5, 4, 0.5 };
+
+        CompactEmpiricalDistribution dis = new CompactEmpiricalDistribution(obs, 0);
+
+        assertEquals(obs.length, dis.getNumberOfKnots() + 1);
+        assertEquals(0, dis.cdf(0.4, false), 0.0001);
+        assertEquals(1 / (double) obs.length, dis.cdf(0.5, false), 0.0001);
+        assertEquals(3 / (double) obs.length, dis.cdf(1, false), 0.0001);
+        assertEquals(3 / (double) obs.length, dis.cdf(1.01, false), 0.0001);
+        assertEquals(1, dis.cdf(4, false), 0.0001);
+        assertEquals(2 / (double) obs.length, dis.prob(1), 0.0001);
+        assertEquals(0, dis.prob(1.01), 0.0001);
+        assertEquals(0.5, dis.getMin(), 0.0001);
+        assertEquals(4, dis.getMax(), 0.0001);
+    }
+
+    @Test
+    public void testUpperTailError()
+    {
+        Random rnd = new Random(1);
+
+        double[] obs = new double[250000];
+        for (int i = 0; i < obs.length; i++) {
+            /* Some ties and a long upper tail */
+            obs[i] = Math.round(-Math.log(rnd.nextDouble()) * 1000) / 1000.0;
+        }
+
+        double relativeError = 0.01;
+        CompactEmpiricalDistribution dis = new CompactEmpiricalDistribution(obs, relativeError);
+        EmpiricalDistribution exact = new EmpiricalDistribution(obs);
+
+        assertTrue(dis.getNumberOfKnots() < 2000);
+
+        for (int i = 0; i < 1000; i++) {
+            double x = rnd.nextDouble() * 14;
+            double expectedTail = 1 - exact.cdf(x, false) + exact.prob(x);
+            double actualTail = 1 - dis.cdf(x, false) + dis.prob(x);
+            assertEquals(expectedTail, actualTail, 2 * relativeError * expectedTail + 1.0 / obs.length);
+        }
+
+        /* Observed values are exact */
+        for (int i = 0; i < 1000; i++) {
+            double x = obs[rnd.nextInt(obs.length)];
+            assertEquals(exact.prob(x) > 0, true);
+            double expectedTail = 1 - exact.cdf(x, false) + exact.prob(x);
+            double actualTail = 1 - dis.cdf(x, false) + dis.prob(x);
+            assertEquals(expectedTail, actualTail, 2 * relativeError * expectedTail + 1.0 / obs.length);
+        }
+    }
+}